@@ -178,6 +178,7 @@ public class A2dpReceiver extends BroadcastReceiver {
         if (alarm) {
             Log.v(TAG, "Alarm Message to Stop playing");
             mPMCStatusLogger.logStatus("SUCCEED");
+            mPMCStatusLogger.close();
             mPlayer.stop();
             // Release the Media Player
             mPlayer.release();
@@ -205,8 +206,8 @@ public class A2dpReceiver extends BroadcastReceiver {
         String musicUrl;
         String tmpStr;
 
-        // Create the logger object
-        mPMCStatusLogger = new PMCStatusLogger(TAG + ".log", TAG);
+        // Create the logger object, replacing the one from the previous test
+        mPMCStatusLogger = PMCStatusLogger.open(TAG + ".log", TAG);
 
         // For a baseline case when Blueooth is off but music is playing with speaker is muted
         boolean bt_off_mute = false;
@@ -228,6 +229,7 @@ public class A2dpReceiver extends BroadcastReceiver {
         if (!bt_off_mute) {
             if (!initialize()) {
                 mPMCStatusLogger.logStatus("initialize() Failed");
+                mPMCStatusLogger.close();
                 return;
             }
         }
@@ -237,6 +239,7 @@ public class A2dpReceiver extends BroadcastReceiver {
             // Do nothing further
             mPMCStatusLogger.logStatus("READY");
             mPMCStatusLogger.logStatus("SUCCEED");
+            mPMCStatusLogger.close();
             return;
         }
 
@@ -336,6 +339,7 @@ public class A2dpReceiver extends BroadcastReceiver {
             startAlarm(playTime);
         } else {
             mPMCStatusLogger.logStatus("playMusic() Failed");
+            mPMCStatusLogger.close();
         }
     }
 
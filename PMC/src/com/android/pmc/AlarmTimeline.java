@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Primitive backed store for alarm start and end times.
+ *
+ * Every cycle is kept in a pair of growing double arrays instead of a JSON object, and
+ * is also appended to a fixed width binary file as it is logged:
+ *
+ *   header: int magic "PMCT", int version
+ *   record: double startTime, double endTime (seconds, big endian)
+ *
+ * The legacy {"AlarmTimes":[...]} JSON can be produced from memory with toJson(), which
+ * PMCStatusLogger.flash() writes at the log file's path as before, or offline on any
+ * JVM from the binary file with:
+ *
+ *   java -cp PMC com.android.pmc.AlarmTimeline BLEPOWER.log.bin [out.json]
+ *
+ * Both end the JSON with a newline, like the legacy log file.
+ */
+public class AlarmTimeline {
+    public static final int MAGIC = 0x504d4354;
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 8;
+    public static final int RECORD_BYTES = 16;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private double[] mStartTimes = new double[INITIAL_CAPACITY];
+    private double[] mEndTimes = new double[INITIAL_CAPACITY];
+    private int mSize;
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_BYTES);
+    private FileChannel mChannel;
+
+    /**
+     * Constructor - creates the binary timeline file, replacing any previous one
+     *
+     * @param file - binary file to append the records to, null to keep them in memory only
+     */
+    public AlarmTimeline(File file) throws IOException {
+        if (file == null) return;
+        mChannel = new FileOutputStream(file, false).getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        writeFully(header);
+    }
+
+    /**
+     * Add one cycle to the timeline and append it to the binary file
+     *
+     * @param startTime - Start time for the cycle
+     * @param endTime - End time for the cycle
+     */
+    public synchronized void add(double startTime, double endTime) throws IOException {
+        if (mSize == mStartTimes.length) {
+            mStartTimes = Arrays.copyOf(mStartTimes, mSize * 2);
+            mEndTimes = Arrays.copyOf(mEndTimes, mSize * 2);
+        }
+        mStartTimes[mSize] = startTime;
+        mEndTimes[mSize] = endTime;
+        mSize++;
+        if (mChannel != null) {
+            mRecord.clear();
+            mRecord.putDouble(startTime).putDouble(endTime).flip();
+            writeFully(mRecord);
+        }
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized double getStartTime(int index) {
+        return mStartTimes[index];
+    }
+
+    public synchronized double getEndTime(int index) {
+        return mEndTimes[index];
+    }
+
+    /**
+     * Returns the timeline in the legacy {"AlarmTimes":[...]} JSON format
+     */
+    public synchronized String toJson() {
+        return toJson(mStartTimes, mEndTimes, mSize);
+    }
+
+    /**
+     * Sync the binary file to storage and close it
+     */
+    public synchronized void close() throws IOException {
+        if (mChannel == null) return;
+        try {
+            mChannel.force(false);
+        } finally {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    /**
+     * Read a binary timeline file and return it in the legacy JSON format
+     *
+     * @param file - binary file written by AlarmTimeline
+     */
+    public static String readJson(File file) throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // keep reading until the whole file is in the buffer
+            }
+            buffer.flip();
+            if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+                throw new IOException("Not an alarm timeline file: " + file);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported alarm timeline version: " + version);
+            }
+            // A partially written trailing record is ignored
+            int count = buffer.remaining() / RECORD_BYTES;
+            double[] startTimes = new double[count];
+            double[] endTimes = new double[count];
+            for (int i = 0; i < count; i++) {
+                startTimes[i] = buffer.getDouble();
+                endTimes[i] = buffer.getDouble();
+            }
+            return toJson(startTimes, endTimes, count);
+        }
+    }
+
+    private static String toJson(double[] startTimes, double[] endTimes, int count) {
+        StringBuilder sb = new StringBuilder(16 + count * 48);
+        sb.append("{\"AlarmTimes\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"StartTime\":").append(startTimes[i])
+                    .append(",\"EndTime\":").append(endTimes[i]).append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    /**
+     * Offline converter from the binary timeline file to the legacy JSON format
+     *
+     * @param args - binary input file and optional JSON output file (stdout otherwise)
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: AlarmTimeline <timeline.bin> [out.json]");
+            System.exit(1);
+        }
+        String json = readJson(new File(args[0]));
+        if (args.length > 1) {
+            try (Writer writer = new OutputStreamWriter(
+                    new FileOutputStream(args[1]), StandardCharsets.UTF_8)) {
+                writer.write(json);
+                writer.write('\n');
+            }
+        } else {
+            System.out.println(json);
+        }
+    }
+}
@@ -168,6 +168,7 @@ public class BleScanReceiver extends BroadcastReceiver {
             }
             if (currentAlarm >= mNumAlarms) {
                 mPMCStatusLogger.flash();  // To flash out timestamps into log file
+                mPMCStatusLogger.close();
                 Log.d(TAG, "All alarms are done");
                 return;
             }
@@ -216,6 +217,7 @@ public class BleScanReceiver extends BroadcastReceiver {
                     repeatAlarm(intent, mNoScanTime, START_SCAN);
                 } else {
                     mPMCStatusLogger.flash();  // To flash out timestamps into log file
+                    mPMCStatusLogger.close();
                     Log.d(TAG, "Time is up to end");
                 }
             } else {
@@ -257,7 +259,7 @@ public class BleScanReceiver extends BroadcastReceiver {
             String str;
 
             mStartTestTime = System.currentTimeMillis();
-            mPMCStatusLogger = new PMCStatusLogger(TAG + ".log", TAG);
+            mPMCStatusLogger = PMCStatusLogger.open(TAG + ".log", TAG);
 
             if (extras == null) {
                 Log.e(TAG, "No parameters specified");
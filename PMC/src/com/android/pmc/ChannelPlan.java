@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.net.wifi.WifiScanner;
+import android.net.wifi.WifiScanner.ChannelSpec;
+import android.net.wifi.WifiScanner.ScanSettings;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Set of channels or band covered by one GScan.
+ *
+ * A plan is described by a spec string, either a named preset or a comma separated
+ * list of channel frequencies in MHz:
+ *
+ *   social     channels 1, 6 and 11 (2412, 2437, 2462)
+ *   2g         2.4GHz band
+ *   5g         5GHz band
+ *   dfs        5GHz DFS channels only
+ *   both       2.4GHz and 5GHz bands
+ *   2412,5180  the listed channels
+ *
+ * Several plans are separated by ';' and rotated through in one session. Unless DFS
+ * is included, 5g and both skip the DFS channels and DFS frequencies are removed from
+ * channel lists.
+ */
+public class ChannelPlan {
+    public static final String PRESET_SOCIAL = "social";
+    public static final String PRESET_2G = "2g";
+    public static final String PRESET_5G = "5g";
+    public static final String PRESET_DFS = "dfs";
+    public static final String PRESET_BOTH = "both";
+    private static final String PLAN_SEPARATOR = ";";
+    private static final String CHANNEL_SEPARATOR = ",";
+    private static final int[] SOCIAL_CHANNELS = {2412, 2437, 2462};
+    private static final int DFS_MIN_FREQUENCY = 5260;
+    private static final int DFS_MAX_FREQUENCY = 5720;
+
+    private final String mName;
+    private final int mBand;
+    private final int[] mChannels;
+
+    private ChannelPlan(String name, int band, int[] channels) {
+        mName = name;
+        mBand = band;
+        mChannels = channels;
+    }
+
+    /**
+     * Parse one plan spec.
+     *
+     * @param spec - preset name or comma separated channel frequencies
+     * @param includeDfs - whether DFS channels are scanned
+     * @throws IllegalArgumentException if the spec is neither a preset nor a channel list
+     */
+    public static ChannelPlan parse(String spec, boolean includeDfs) {
+        String name = spec.trim().toLowerCase(Locale.ROOT);
+        if (name.equals(PRESET_SOCIAL)) {
+            return new ChannelPlan(name, WifiScanner.WIFI_BAND_UNSPECIFIED, SOCIAL_CHANNELS);
+        } else if (name.equals(PRESET_2G)) {
+            return new ChannelPlan(name, WifiScanner.WIFI_BAND_24_GHZ, null);
+        } else if (name.equals(PRESET_5G)) {
+            return new ChannelPlan(includeDfs ? name + "+dfs" : name, includeDfs
+                    ? WifiScanner.WIFI_BAND_5_GHZ_WITH_DFS : WifiScanner.WIFI_BAND_5_GHZ, null);
+        } else if (name.equals(PRESET_DFS)) {
+            return new ChannelPlan(name, WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY, null);
+        } else if (name.equals(PRESET_BOTH)) {
+            return new ChannelPlan(includeDfs ? name + "+dfs" : name, includeDfs
+                    ? WifiScanner.WIFI_BAND_BOTH_WITH_DFS : WifiScanner.WIFI_BAND_BOTH, null);
+        }
+        String[] frequencies = name.split(CHANNEL_SEPARATOR);
+        int[] channels = new int[frequencies.length];
+        int count = 0;
+        for (String frequency : frequencies) {
+            int channel;
+            try {
+                channel = Integer.parseInt(frequency.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Unknown channel plan: " + spec);
+            }
+            if (!includeDfs && channel >= DFS_MIN_FREQUENCY && channel <= DFS_MAX_FREQUENCY) {
+                Log.w(PMCMainActivity.TAG, "Skipping DFS channel " + channel + " in " + spec);
+                continue;
+            }
+            channels[count++] = channel;
+        }
+        if (count == 0) {
+            throw new IllegalArgumentException("No channel left in channel plan: " + spec);
+        }
+        int[] kept = new int[count];
+        System.arraycopy(channels, 0, kept, 0, count);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(CHANNEL_SEPARATOR);
+            sb.append(kept[i]);
+        }
+        return new ChannelPlan(sb.toString(), WifiScanner.WIFI_BAND_UNSPECIFIED, kept);
+    }
+
+    /**
+     * Parse a ';' separated list of plan specs.
+     *
+     * @param specs - plan specs, e.g. "social;both;2412,5180"
+     * @param includeDfs - whether DFS channels are scanned
+     * @throws IllegalArgumentException if any of the specs is invalid
+     */
+    public static ChannelPlan[] parseList(String specs, boolean includeDfs) {
+        List<ChannelPlan> plans = new ArrayList<ChannelPlan>();
+        for (String spec : specs.split(PLAN_SEPARATOR)) {
+            if (spec.trim().length() == 0) continue;
+            plans.add(parse(spec, includeDfs));
+        }
+        if (plans.isEmpty()) {
+            throw new IllegalArgumentException("No channel plan in: " + specs);
+        }
+        return plans.toArray(new ChannelPlan[plans.size()]);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns new ScanSettings covering this plan's band or channels
+     */
+    public ScanSettings toScanSettings() {
+        ScanSettings scanSettings = new ScanSettings();
+        if (mChannels != null) {
+            ChannelSpec[] channels = new ChannelSpec[mChannels.length];
+            for (int i = 0; i < mChannels.length; i++) {
+                channels[i] = new ChannelSpec(mChannels[i]);
+            }
+            scanSettings.band = WifiScanner.WIFI_BAND_UNSPECIFIED;
+            scanSettings.channels = channels;
+        } else {
+            scanSettings.band = mBand;
+        }
+        return scanSettings;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
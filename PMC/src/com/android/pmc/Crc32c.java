@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming CRC32C (Castagnoli), as used by iSCSI, ext4 and cloud storage checksums.
+ *
+ * java.util.zip.CRC32C only exists from API 26, so this is the table driven
+ * slicing by 8 algorithm. Bytes are read in place with absolute gets, so a buffer can
+ * be checksummed between being filled and being cleared without a copy. A little
+ * endian buffer is consumed 8 bytes per step, any other one byte per step.
+ */
+public class Crc32c {
+    private static final int POLYNOMIAL = 0x82F63B78;
+    // TABLE[k][b] is the CRC of byte b followed by k zero bytes
+    private static final int[][] TABLE = new int[8][256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            int crc = b;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[0][b] = crc;
+        }
+        for (int k = 1; k < 8; k++) {
+            for (int b = 0; b < 256; b++) {
+                int previous = TABLE[k - 1][b];
+                TABLE[k][b] = (previous >>> 8) ^ TABLE[0][previous & 0xff];
+            }
+        }
+    }
+
+    private int mCrc = 0xFFFFFFFF;
+
+    public void reset() {
+        mCrc = 0xFFFFFFFF;
+    }
+
+    /**
+     * Add the bytes of a buffer between two indexes, leaving its position alone.
+     *
+     * @param buffer - bytes to add
+     * @param from - index of the first byte
+     * @param to - index after the last byte
+     */
+    public void update(ByteBuffer buffer, int from, int to) {
+        int crc = mCrc;
+        int i = from;
+        if (buffer.order() == ByteOrder.LITTLE_ENDIAN) {
+            int[] t0 = TABLE[0], t1 = TABLE[1], t2 = TABLE[2], t3 = TABLE[3];
+            int[] t4 = TABLE[4], t5 = TABLE[5], t6 = TABLE[6], t7 = TABLE[7];
+            for (; i + 8 <= to; i += 8) {
+                long word = buffer.getLong(i);
+                int low = crc ^ (int) word;
+                int high = (int) (word >>> 32);
+                crc = t7[low & 0xff] ^ t6[(low >>> 8) & 0xff] ^ t5[(low >>> 16) & 0xff]
+                        ^ t4[low >>> 24] ^ t3[high & 0xff] ^ t2[(high >>> 8) & 0xff]
+                        ^ t1[(high >>> 16) & 0xff] ^ t0[high >>> 24];
+            }
+        }
+        for (; i < to; i++) {
+            crc = (crc >>> 8) ^ TABLE[0][(crc ^ buffer.get(i)) & 0xff];
+        }
+        mCrc = crc;
+    }
+
+    public void update(byte[] bytes, int offset, int length) {
+        update(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN), offset, offset + length);
+    }
+
+    /**
+     * Returns the CRC of the bytes added since the last reset, as an unsigned value.
+     */
+    public long getValue() {
+        return ~mCrc & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Returns the CRC of two byte sequences one after the other, from the CRC of each,
+     * in O(log length) like zlib's crc32_combine. Used to checksum a long repetitive
+     * payload without reading all of it.
+     *
+     * @param crc1 - CRC of the first sequence
+     * @param crc2 - CRC of the second sequence
+     * @param length2 - length of the second sequence
+     */
+    public static long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) return crc1;
+        // Operators shifting a CRC by one zero bit, then by 2, 4, 8 ... zero bits
+        int[] odd = new int[32];
+        int[] even = new int[32];
+        odd[0] = POLYNOMIAL;
+        for (int n = 1, row = 1; n < 32; n++, row <<= 1) {
+            odd[n] = row;
+        }
+        square(even, odd);
+        square(odd, even);
+        int crc = (int) crc1;
+        // Apply length2 zero bytes to crc1, one bit of the length per squaring
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) crc = times(even, crc);
+            length2 >>= 1;
+            if (length2 == 0) break;
+            square(odd, even);
+            if ((length2 & 1) != 0) crc = times(odd, crc);
+            length2 >>= 1;
+        } while (length2 != 0);
+        return (crc ^ (int) crc2) & 0xFFFFFFFFL;
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) sum ^= matrix[i];
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
@@ -0,0 +1,735 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.util.JsonReader;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In process iperf3 client, so a run does not depend on an iperf3 binary on the device.
+ *
+ * The engine speaks the iperf3 control protocol to a stock iperf3 server: cookie,
+ * JSON parameters, stream creation, test start, test end and the exchange of JSON
+ * results, after which the server's view of the test (bytes received, jitter and
+ * lost packets for UDP) is available. Streams send from one preallocated direct
+ * buffer, each over a connected DatagramChannel for UDP with its iperf3 sequence
+ * header rewritten in place, or a SocketChannel for TCP. Parallel streams (iperf3
+ * -P) take turns block by block, and like with iperf3 the bandwidth is per stream.
+ *
+ * Sending is paced to the target bandwidth by the byte count: a block goes out once
+ * the bytes sent so far are due, so a late block is followed by a catch up burst
+ * like the native client does. How late every block was is recorded in a pacing lag
+ * histogram. Stats are closed every interval and handed to the listener on the
+ * engine thread.
+ */
+public class Iperf3Engine {
+    public static final int DEFAULT_PORT = 5201;
+    public static final int DEFAULT_UDP_LENGTH = 1460;
+    public static final int DEFAULT_TCP_LENGTH = 128 * 1024;
+    public static final long DEFAULT_UDP_BANDWIDTH = 1000000;
+    public static final String STATE_IDLE = "idle";
+    public static final String STATE_CONNECTING = "connecting";
+    public static final String STATE_RUNNING = "running";
+    public static final String STATE_FINISHED = "finished";
+    public static final String STATE_FAILED = "failed";
+
+    // Control channel states, as defined by iperf_api.h
+    private static final int TEST_START = 1;
+    private static final int TEST_RUNNING = 2;
+    private static final int TEST_END = 4;
+    private static final int PARAM_EXCHANGE = 9;
+    private static final int CREATE_STREAMS = 10;
+    private static final int SERVER_TERMINATE = 11;
+    private static final int CLIENT_TERMINATE = 12;
+    private static final int EXCHANGE_RESULTS = 13;
+    private static final int DISPLAY_RESULTS = 14;
+    private static final int IPERF_DONE = 16;
+    private static final int ACCESS_DENIED = -1;
+    private static final int SERVER_ERROR = -2;
+
+    private static final int COOKIE_SIZE = 37;
+    private static final String COOKIE_CHARS = "abcdefghijklmnopqrstuvwxyz234567";
+    private static final int UDP_CONNECT_MSG = 0x36373839;
+    private static final int UDP_CONNECT_REPLY = 0x39383736;
+    private static final int LEGACY_UDP_CONNECT_REPLY = 987654321;
+    private static final int UDP_CONNECT_ATTEMPTS = 3;
+    // Seconds, microseconds and packet count, in network order
+    private static final int UDP_HEADER_SIZE = 12;
+    // Duration sent when the test runs until stopped, the max accepted by iperf3
+    private static final int MAX_DURATION_SECONDS = 86400;
+    private static final int CONTROL_TIMEOUT_MILLIS = 30 * 1000;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /**
+     * Receives the stats of the test, on the engine thread.
+     */
+    public interface Listener {
+        void onInterval(Interval interval);
+
+        /**
+         * @param error - null if the test ran to completion, or what stopped it
+         */
+        void onFinished(String error);
+    }
+
+    /**
+     * Bytes and packets sent over one reporting interval
+     */
+    public static class Interval {
+        public final double startSeconds;
+        public final double endSeconds;
+        public final long bytes;
+        public final long packets;
+
+        Interval(double startSeconds, double endSeconds, long bytes, long packets) {
+            this.startSeconds = startSeconds;
+            this.endSeconds = endSeconds;
+            this.bytes = bytes;
+            this.packets = packets;
+        }
+
+        public long getBitsPerSecond() {
+            double seconds = endSeconds - startSeconds;
+            return seconds <= 0 ? 0 : (long) (bytes * 8 / seconds);
+        }
+
+        /**
+         * Returns the interval in the shape of an iperf3 -J interval sum
+         */
+        public String toJson() {
+            return String.format("{\"start\":%.6f,\"end\":%.6f,\"seconds\":%.6f,\"bytes\":%d,"
+                    + "\"bits_per_second\":%d,\"packets\":%d,\"omitted\":false}", startSeconds,
+                    endSeconds, endSeconds - startSeconds, bytes, getBitsPerSecond(), packets);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%.2f-%.2f s] bytes=%d bps=%d packets=%d", startSeconds,
+                    endSeconds, bytes, getBitsPerSecond(), packets);
+        }
+    }
+
+    private final String mHost;
+    private final int mPort;
+    private final boolean mUdp;
+    private final long mBandwidth;
+    private final int mLength;
+    private final int mDurationSeconds;
+    private final long mIntervalNanos;
+    private final Listener mListener;
+    private final ByteBuffer mSendBuffer;
+    private final byte[] mCookie = new byte[COOKIE_SIZE];
+    private final LatencyHistogram mPacingLag = new LatencyHistogram();
+    private Thread mThread;
+    private Socket mControl;
+    private volatile boolean mStopped;
+    private volatile String mState = STATE_IDLE;
+    private volatile String mError;
+    private int mParallel = 1;
+    private int mWindow;
+    // Bytes and packets of every stream, for the results exchanged with the server
+    private long[] mStreamBytes;
+    private long[] mStreamPackets;
+
+    // Written by the engine thread only
+    private volatile long mBytesSent;
+    private volatile long mPacketsSent;
+    private volatile double mSeconds;
+    private volatile long mIntervalCount;
+    private volatile Interval mLastInterval;
+
+    // The server's side of the results, once exchanged
+    private volatile boolean mHaveServerResults;
+    private volatile long mServerBytes;
+    private volatile long mServerPackets;
+    private volatile long mServerLost;
+    private volatile double mServerJitterMillis;
+    private volatile double mServerSeconds;
+
+    /**
+     * Constructor
+     *
+     * @param host - iperf3 server
+     * @param port - iperf3 server port
+     * @param udp - UDP if true, TCP otherwise
+     * @param bandwidth - target bits per second, 0 for unlimited, negative for the iperf3
+     *                    default, DEFAULT_UDP_BANDWIDTH for UDP and unlimited for TCP
+     * @param length - size of every datagram or socket write, 0 for the iperf3 default
+     * @param durationSeconds - length of the test, 0 to run until stopped
+     * @param intervalSeconds - time between two reported intervals
+     * @param listener - receives the intervals and the end of the test
+     */
+    public Iperf3Engine(String host, int port, boolean udp, long bandwidth, int length,
+                        int durationSeconds, int intervalSeconds, Listener listener) {
+        mHost = host;
+        mPort = port;
+        mUdp = udp;
+        if (bandwidth >= 0) {
+            mBandwidth = bandwidth;
+        } else {
+            mBandwidth = udp ? DEFAULT_UDP_BANDWIDTH : 0;
+        }
+        if (length > 0) {
+            mLength = udp ? Math.max(length, UDP_HEADER_SIZE) : length;
+        } else {
+            mLength = udp ? DEFAULT_UDP_LENGTH : DEFAULT_TCP_LENGTH;
+        }
+        mDurationSeconds = Math.min(durationSeconds, MAX_DURATION_SECONDS);
+        mIntervalNanos = Math.max(intervalSeconds, 1) * NANOS_PER_SECOND;
+        mListener = listener;
+        // Network order for the UDP header, the payload itself is never touched
+        mSendBuffer = ByteBuffer.allocateDirect(mLength).order(ByteOrder.BIG_ENDIAN);
+        SecureRandom random = new SecureRandom();
+        for (int i = 0; i < COOKIE_SIZE - 1; i++) {
+            mCookie[i] = (byte) COOKIE_CHARS.charAt(random.nextInt(COOKIE_CHARS.length()));
+        }
+    }
+
+    /**
+     * Parse an iperf3 bandwidth, bits per second with an optional K, M or G suffix
+     * in powers of 1000, e.g. "1M" or "2.5G".
+     *
+     * @param bandwidth
+     * @throws IllegalArgumentException if the bandwidth is malformed
+     */
+    public static long parseBandwidth(String bandwidth) {
+        String value = bandwidth.trim();
+        double multiplier = 1;
+        if (value.length() > 0) {
+            switch (Character.toUpperCase(value.charAt(value.length() - 1))) {
+                case 'K':
+                    multiplier = 1e3;
+                    break;
+                case 'M':
+                    multiplier = 1e6;
+                    break;
+                case 'G':
+                    multiplier = 1e9;
+                    break;
+                default:
+                    break;
+            }
+            if (multiplier != 1) value = value.substring(0, value.length() - 1);
+        }
+        try {
+            double bitsPerSecond = Double.parseDouble(value) * multiplier;
+            if (bitsPerSecond < 0) throw new NumberFormatException();
+            return (long) bitsPerSecond;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid iperf bandwidth: " + bandwidth);
+        }
+    }
+
+    /**
+     * Parse an iperf3 size, bytes with an optional K, M or G suffix in powers of 1024,
+     * e.g. "256K".
+     *
+     * @param size
+     * @throws IllegalArgumentException if the size is malformed
+     */
+    public static int parseSize(String size) {
+        String value = size.trim();
+        int shift = 0;
+        if (value.length() > 0) {
+            switch (Character.toUpperCase(value.charAt(value.length() - 1))) {
+                case 'K':
+                    shift = 10;
+                    break;
+                case 'M':
+                    shift = 20;
+                    break;
+                case 'G':
+                    shift = 30;
+                    break;
+                default:
+                    break;
+            }
+            if (shift != 0) value = value.substring(0, value.length() - 1);
+        }
+        try {
+            double bytes = Double.parseDouble(value) * (1L << shift);
+            if (bytes < 0 || bytes > Integer.MAX_VALUE) throw new NumberFormatException();
+            return (int) bytes;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid iperf size: " + size);
+        }
+    }
+
+    /**
+     * Socket buffer size of the streams, like iperf3 -w. The server sizes its side to
+     * match. Must be set before start.
+     *
+     * @param bytes - buffer size, 0 for the system default
+     */
+    public void setWindow(int bytes) {
+        mWindow = Math.max(bytes, 0);
+    }
+
+    /**
+     * Run several streams in parallel, like iperf3 -P. Must be set before start.
+     *
+     * @param streams - number of streams, each sending at the bandwidth
+     */
+    public void setParallel(int streams) {
+        mParallel = Math.max(streams, 1);
+    }
+
+    /**
+     * Start the test on its own thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) return;
+        mState = STATE_CONNECTING;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runTest();
+            }
+        }, "Iperf3Engine");
+        mThread.start();
+    }
+
+    /**
+     * End the test. The results are still exchanged with the server, so the
+     * listener is told about the end shortly after this returns.
+     */
+    public synchronized void stop() {
+        mStopped = true;
+        // Nothing is sent yet, unblock the setup rather than wait for its timeout
+        if (mState.equals(STATE_CONNECTING) && mControl != null) {
+            try {
+                mControl.close();
+            } catch (IOException e) {
+                // The engine thread fails on the closed socket either way
+            }
+        }
+    }
+
+    public String getState() {
+        return mState;
+    }
+
+    /**
+     * Returns the test progress so far, and the server results once the test is over
+     */
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("state=").append(mState).append(" protocol=").append(mUdp ? "udp" : "tcp")
+                .append(" bandwidth=").append(mBandwidth).append(" length=").append(mLength)
+                .append(" streams=").append(mParallel).append(" intervals=")
+                .append(mIntervalCount);
+        Interval last = mLastInterval;
+        if (last != null) sb.append(" last=").append(last);
+        double seconds = mSeconds;
+        sb.append("; sent: bytes=").append(mBytesSent).append(" packets=").append(mPacketsSent)
+                .append(String.format(" seconds=%.2f bps=%d", seconds,
+                        seconds <= 0 ? 0 : (long) (mBytesSent * 8 / seconds)))
+                .append(" pacingLag: ").append(mPacingLag.toSummaryString());
+        if (mHaveServerResults) {
+            sb.append("; received: bytes=").append(mServerBytes)
+                    .append(String.format(" bps=%d", mServerSeconds <= 0 ? 0
+                            : (long) (mServerBytes * 8 / mServerSeconds)));
+            if (mUdp) {
+                sb.append(String.format(" jitter=%.3fms lost=%d/%d (%.2f%%)",
+                        mServerJitterMillis, mServerLost, mServerPackets,
+                        mServerPackets == 0 ? 0 : 100.0 * mServerLost / mServerPackets));
+            }
+        }
+        String error = mError;
+        if (error != null) sb.append("; error: ").append(error);
+        return sb.toString();
+    }
+
+    /**
+     * Copy the totals of the server into stats, once the results were exchanged. Loss
+     * and jitter are only known for UDP.
+     *
+     * @return false if the server results were not received
+     */
+    public boolean copyServerTotals(IperfStats stats) {
+        if (!mHaveServerResults) return false;
+        long bps = mServerSeconds <= 0 ? 0 : (long) (mServerBytes * 8 / mServerSeconds);
+        if (mUdp) {
+            stats.setEndTotals(bps, mServerJitterMillis, mServerLost, mServerPackets);
+        } else {
+            stats.setEndTotals(bps, -1, -1, mServerPackets);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the totals of both sides as JSON, the received side once the results
+     * were exchanged:
+     * {"sent":{"seconds":..,"bytes":..,"bits_per_second":..,"packets":..},
+     *  "received":{"seconds":..,"bytes":..,"bits_per_second":..,"packets":..,
+     *  "lost_packets":..,"jitter_ms":..},"error":".."}
+     */
+    public String toJson() {
+        double seconds = mSeconds;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("{\"sent\":{\"seconds\":%.6f,\"bytes\":%d,"
+                + "\"bits_per_second\":%d,\"packets\":%d}", seconds, mBytesSent,
+                seconds <= 0 ? 0 : (long) (mBytesSent * 8 / seconds), mPacketsSent));
+        if (mHaveServerResults) {
+            sb.append(String.format(",\"received\":{\"seconds\":%.6f,\"bytes\":%d,"
+                    + "\"bits_per_second\":%d,\"packets\":%d,\"lost_packets\":%d,"
+                    + "\"jitter_ms\":%.3f}", mServerSeconds, mServerBytes,
+                    mServerSeconds <= 0 ? 0 : (long) (mServerBytes * 8 / mServerSeconds),
+                    mServerPackets, mServerLost, mServerJitterMillis));
+        }
+        String error = mError;
+        if (error != null) {
+            sb.append(",\"error\":\"").append(error.replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append('"');
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private void runTest() {
+        WritableByteChannel[] streams = new WritableByteChannel[mParallel];
+        mStreamBytes = new long[mParallel];
+        mStreamPackets = new long[mParallel];
+        try {
+            InetSocketAddress address = new InetSocketAddress(mHost, mPort);
+            synchronized (this) {
+                if (mStopped) throw new IOException("Stopped before the test started");
+                mControl = new Socket();
+            }
+            mControl.connect(address, CONTROL_TIMEOUT_MILLIS);
+            mControl.setTcpNoDelay(true);
+            mControl.setSoTimeout(CONTROL_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(mControl.getInputStream());
+            DataOutputStream out = new DataOutputStream(mControl.getOutputStream());
+            out.write(mCookie);
+            expectState(in, PARAM_EXCHANGE);
+            writeJson(out, getParamsJson());
+            expectState(in, CREATE_STREAMS);
+            for (int i = 0; i < mParallel; i++) {
+                if (mUdp) {
+                    streams[i] = openUdpStream(address);
+                } else {
+                    SocketChannel stream = SocketChannel.open();
+                    streams[i] = stream;
+                    // Before connecting, for the window scale to be negotiated
+                    if (mWindow > 0) stream.socket().setSendBufferSize(mWindow);
+                    stream.connect(address);
+                    stream.write(ByteBuffer.wrap(mCookie));
+                }
+            }
+            expectState(in, TEST_START);
+            expectState(in, TEST_RUNNING);
+            mState = STATE_RUNNING;
+            Log.i(PMCMainActivity.TAG, "iperf3 test running to " + address);
+            send(in, streams);
+            out.writeByte(TEST_END);
+            expectState(in, EXCHANGE_RESULTS);
+            writeJson(out, getResultsJson());
+            parseServerResults(readJson(in));
+            expectState(in, DISPLAY_RESULTS);
+            out.writeByte(IPERF_DONE);
+            mState = STATE_FINISHED;
+        } catch (IOException e) {
+            if (mStopped && mState.equals(STATE_CONNECTING)) {
+                mError = "Stopped before the test started";
+            } else {
+                mError = e.getMessage() != null ? e.getMessage() : e.toString();
+            }
+            Log.e(PMCMainActivity.TAG, "iperf3 test failed: " + mError);
+            // Let the server end its side of the test rather than wait for its timeout
+            if (mState.equals(STATE_RUNNING)) {
+                try {
+                    mControl.getOutputStream().write(CLIENT_TERMINATE);
+                } catch (IOException ignored) {
+                    // The control connection is gone already
+                }
+            }
+            mState = STATE_FAILED;
+        } finally {
+            for (WritableByteChannel stream : streams) {
+                close(stream);
+            }
+            if (mControl != null) {
+                try {
+                    mControl.close();
+                } catch (IOException e) {
+                    // Nothing left to do with a socket that fails to close
+                }
+            }
+        }
+        if (mListener != null) mListener.onFinished(mError);
+    }
+
+    private DatagramChannel openUdpStream(InetSocketAddress address) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        if (mWindow > 0) channel.socket().setSendBufferSize(mWindow);
+        channel.connect(address);
+        channel.configureBlocking(false);
+        Selector selector = Selector.open();
+        try {
+            channel.register(selector, SelectionKey.OP_READ);
+            // The server replies in its own byte order, little endian on most hosts
+            ByteBuffer message = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            message.putInt(UDP_CONNECT_MSG).flip();
+            ByteBuffer reply = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            for (int attempt = 0; attempt < UDP_CONNECT_ATTEMPTS; attempt++) {
+                message.rewind();
+                channel.write(message);
+                if (selector.select(CONTROL_TIMEOUT_MILLIS / UDP_CONNECT_ATTEMPTS) == 0) continue;
+                selector.selectedKeys().clear();
+                reply.clear();
+                channel.read(reply);
+                if (reply.position() != 4) continue;
+                int value = reply.getInt(0);
+                if (value == UDP_CONNECT_REPLY || value == LEGACY_UDP_CONNECT_REPLY
+                        || Integer.reverseBytes(value) == UDP_CONNECT_REPLY
+                        || Integer.reverseBytes(value) == LEGACY_UDP_CONNECT_REPLY) {
+                    selector.close();
+                    channel.configureBlocking(true);
+                    return channel;
+                }
+                throw new IOException("Unexpected UDP connect reply " + Integer.toHexString(value));
+            }
+            throw new SocketTimeoutException("No reply to the UDP stream connect");
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        } finally {
+            selector.close();
+        }
+    }
+
+    private void send(DataInputStream control, WritableByteChannel[] streams)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        long startMicros = System.currentTimeMillis() * 1000;
+        long endNanos = mDurationSeconds == 0 ? Long.MAX_VALUE
+                : startNanos + mDurationSeconds * NANOS_PER_SECOND;
+        long intervalStartNanos = startNanos;
+        long intervalBytes = 0;
+        long intervalPackets = 0;
+        long bytesSent = 0;
+        long packetsSent = 0;
+        long bandwidth = mBandwidth * streams.length;
+        while (!mStopped) {
+            long now = System.nanoTime();
+            if (now - intervalStartNanos >= mIntervalNanos || now >= endNanos) {
+                long intervalEndNanos = Math.min(now, endNanos);
+                if (intervalEndNanos > intervalStartNanos) {
+                    finishInterval(startNanos, intervalStartNanos, intervalEndNanos,
+                            intervalBytes, intervalPackets);
+                }
+                intervalStartNanos = intervalEndNanos;
+                intervalBytes = 0;
+                intervalPackets = 0;
+                checkControl(control);
+                if (now >= endNanos) break;
+            }
+            if (bandwidth > 0) {
+                long dueNanos = startNanos + (long) (bytesSent * 8.0 * NANOS_PER_SECOND
+                        / bandwidth);
+                if (now < dueNanos) {
+                    LockSupport.parkNanos(Math.min(dueNanos,
+                            Math.min(intervalStartNanos + mIntervalNanos, endNanos)) - now);
+                    continue;
+                }
+                mPacingLag.record((now - dueNanos) / 1000);
+            }
+            int stream = (int) (packetsSent % streams.length);
+            mSendBuffer.clear();
+            if (mUdp) {
+                long micros = startMicros + (now - startNanos) / 1000;
+                mSendBuffer.putInt(0, (int) (micros / 1000000));
+                mSendBuffer.putInt(4, (int) (micros % 1000000));
+                mSendBuffer.putInt(8, (int) (mStreamPackets[stream] + 1));
+            }
+            while (mSendBuffer.hasRemaining()) {
+                streams[stream].write(mSendBuffer);
+            }
+            mStreamBytes[stream] += mLength;
+            mStreamPackets[stream]++;
+            bytesSent += mLength;
+            packetsSent++;
+            intervalBytes += mLength;
+            intervalPackets++;
+            mBytesSent = bytesSent;
+            mPacketsSent = packetsSent;
+        }
+        long now = System.nanoTime();
+        if (intervalBytes > 0) {
+            finishInterval(startNanos, intervalStartNanos, Math.min(now, endNanos),
+                    intervalBytes, intervalPackets);
+        }
+        mSeconds = (Math.min(now, endNanos) - startNanos) / (double) NANOS_PER_SECOND;
+    }
+
+    private void finishInterval(long startNanos, long intervalStartNanos, long intervalEndNanos,
+                                long bytes, long packets) {
+        Interval interval = new Interval(
+                (intervalStartNanos - startNanos) / (double) NANOS_PER_SECOND,
+                (intervalEndNanos - startNanos) / (double) NANOS_PER_SECOND, bytes, packets);
+        mLastInterval = interval;
+        mIntervalCount++;
+        mSeconds = interval.endSeconds;
+        if (mListener != null) mListener.onInterval(interval);
+    }
+
+    /**
+     * Fail the test if the server ended it, without blocking when it did not.
+     */
+    private void checkControl(DataInputStream control) throws IOException {
+        if (control.available() == 0) return;
+        int state = control.readByte();
+        failOnError(state, control);
+        Log.d(PMCMainActivity.TAG, "Ignoring iperf3 state " + state + " while running");
+    }
+
+    private static void expectState(DataInputStream control, int expected) throws IOException {
+        int state = control.readByte();
+        if (state == expected) return;
+        failOnError(state, control);
+        throw new IOException("Unexpected iperf3 state " + state + ", expected " + expected);
+    }
+
+    private static void failOnError(int state, DataInputStream control) throws IOException {
+        if (state == ACCESS_DENIED) throw new IOException("Server is busy running a test");
+        if (state == SERVER_ERROR) {
+            // Followed by the server's i_errno and errno
+            throw new IOException("Server error " + control.readInt() + ", errno "
+                    + control.readInt());
+        }
+        if (state == SERVER_TERMINATE) throw new IOException("Server terminated the test");
+    }
+
+    private static void writeJson(DataOutputStream control, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        control.writeInt(bytes.length);
+        control.write(bytes);
+        control.flush();
+    }
+
+    private static String readJson(DataInputStream control) throws IOException {
+        int length = control.readInt();
+        if (length < 0 || length > 1024 * 1024) {
+            throw new IOException("Invalid iperf3 JSON length " + length);
+        }
+        byte[] bytes = new byte[length];
+        control.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String getParamsJson() {
+        return "{\"" + (mUdp ? "udp" : "tcp") + "\":true,\"omit\":0,\"time\":"
+                + (mDurationSeconds == 0 ? MAX_DURATION_SECONDS : mDurationSeconds)
+                + ",\"num\":0,\"blockcount\":0,\"parallel\":" + mParallel + ",\"len\":" + mLength
+                + (mBandwidth > 0 ? ",\"bandwidth\":" + mBandwidth : "")
+                + (mWindow > 0 ? ",\"window\":" + mWindow : "")
+                + ",\"pacing_timer\":1000}";
+    }
+
+    private String getResultsJson() {
+        StringBuilder sb = new StringBuilder("{\"cpu_util_total\":0,\"cpu_util_user\":0,"
+                + "\"cpu_util_system\":0,\"sender_has_retransmits\":-1,\"streams\":[");
+        for (int i = 0; i < mParallel; i++) {
+            if (i > 0) sb.append(',');
+            // iperf3 numbers streams 1, 3, 4, ... Retransmits are not known to Java.
+            sb.append(String.format("{\"id\":%d,\"bytes\":%d,\"retransmits\":-1,\"jitter\":0,"
+                    + "\"errors\":0,\"packets\":%d,\"start_time\":0,\"end_time\":%.6f}",
+                    i == 0 ? 1 : i + 2, mStreamBytes[i], mStreamPackets[i], mSeconds));
+        }
+        return sb.append("]}").toString();
+    }
+
+    private void parseServerResults(String json) throws IOException {
+        long bytes = 0;
+        long packets = 0;
+        long lost = 0;
+        double jitterSeconds = 0;
+        double seconds = 0;
+        JsonReader reader = new JsonReader(new StringReader(json));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals("streams")) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if (name.equals("bytes")) {
+                            bytes += reader.nextLong();
+                        } else if (name.equals("packets")) {
+                            packets += reader.nextLong();
+                        } else if (name.equals("errors")) {
+                            lost += reader.nextLong();
+                        } else if (name.equals("jitter")) {
+                            jitterSeconds = Math.max(jitterSeconds, reader.nextDouble());
+                        } else if (name.equals("end_time")) {
+                            seconds = Math.max(seconds, reader.nextDouble());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed iperf3 server results: " + e.getMessage());
+        } finally {
+            reader.close();
+        }
+        mServerBytes = bytes;
+        mServerPackets = packets;
+        mServerLost = lost;
+        mServerJitterMillis = jitterSeconds * 1000;
+        mServerSeconds = seconds > 0 ? seconds : mSeconds;
+        mHaveServerResults = true;
+    }
+
+    private static void close(Channel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with a channel that fails to close
+        }
+    }
+}
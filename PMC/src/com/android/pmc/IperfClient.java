@@ -12,15 +12,52 @@ import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Starts an iperf client with the provided params for data transmission tests.
- * The client starts a UDP data transfer with the provided server with the max possible timeout.t a
+ * By default the client sends UDP to the provided server for the max possible duration.
+ * The duration, TCP, reverse (-R, the server sends) and bidirectional (--bidir) tests,
+ * and the window and write length, can be set before the client is started. The
+ * intervals of the server to client direction of a bidirectional test are kept in
+ * their own IperfStats.
+ *
+ * The client is either the iperf3 binary or the in process Iperf3Engine. In auto mode
+ * the binary is tried first and the engine takes over when the binary cannot be
+ * started, e.g. because it was not pushed to the device. The engine writes every
+ * interval to the log file as one JSON object per line.
+ *
+ * The binary's JSON output is read through a buffered tee into the log file and an
+ * IperfJsonParser, so intervals are in IperfStats as soon as iperf3 prints them. The
+ * binary only prints them live with --json-stream (iperf3 3.17 and later); with
+ * plain -J its whole output arrives when it exits. Engine intervals go to the same
+ * IperfStats.
+ *
+ * An ExitListener hears about every exit the client did not ask for: the binary
+ * exiting or failing to start, or the engine finishing, with the error if any.
+ * The engine only sends, so reverse and bidirectional tests need the binary.
  */
 public class IperfClient {
+    public static final String ENGINE_AUTO = "auto";
+    public static final String ENGINE_NATIVE = "native";
+    public static final String ENGINE_JAVA = "java";
+    public static final String PROTOCOL_UDP = "udp";
+    public static final String PROTOCOL_TCP = "tcp";
+    public static final String DIRECTION_SEND = "send";
+    public static final String DIRECTION_REVERSE = "reverse";
+    public static final String DIRECTION_BIDIR = "bidir";
 
     private static final String IPERF_COMMAND = "iperf3";
     private static final String IPERF_OPTION_SERVER_FLAG = "-c";
@@ -29,32 +66,88 @@ public class IperfClient {
     private static final String IPERF_OPTION_INTERVAL_FLAG = "-i";
     private static final String IPERF_OPTION_VERBOSE_FLAG = "-V";
     private static final String IPERF_OPTION_UDP_FLAG = "-u";
+    private static final String IPERF_OPTION_PARALLEL_FLAG = "-P";
+    private static final String IPERF_OPTION_REVERSE_FLAG = "-R";
+    private static final String IPERF_OPTION_BIDIR_FLAG = "--bidir";
+    private static final String IPERF_OPTION_WINDOW_FLAG = "-w";
+    private static final String IPERF_OPTION_LENGTH_FLAG = "-l";
     private static final String IPERF_OPTION_JSON_OUTPUT_FLAG = "-J";
+    private static final String IPERF_OPTION_JSON_STREAM_FLAG = "--json-stream";
     private static final String IPERF_OPTION_TIMEOUT_FLAG = "-t";
     private static final String IPERF_OPTION_LOGFILE_FLAG = "--logfile";
     private static final String IPERF_OPTION_TMPDIR_FLAG = "--tmpdir";
     private static final int IPERF_OPTION_INTERVAL = 2;
     // This is the max value supported by iperf3.
     private static final int IPERF_OPTION_TIMEOUT = 86400;
+    private static final int TEE_BUFFER_SIZE = 64 * 1024;
+    private static final long OUTPUT_READER_JOIN_MILLIS = 2000;
 
     private final PMCMainActivity mPMCMainActivity;
     private final ProcessBuilder mProcessBuilder;
     private PowerManager.WakeLock mWakeLock;
     private Process mProcess;
     private File mLogFile;
+    private final String mEngineMode;
+    private final String mServerAddress;
+    private final int mServerPort;
+    private final String mBandwidth;
+    private Iperf3Engine mEngine;
+    private Writer mEngineLog;
+    private final IperfStats mStats = new IperfStats();
+    private final IperfStats mReverseStats = new IperfStats();
+    private String mProtocol = PROTOCOL_UDP;
+    private String mDirection = DIRECTION_SEND;
+    private String mWindow;
+    private String mLength;
+    private boolean mJsonStream = false;
+    private int mParallel = 1;
+    private int mDuration = IPERF_OPTION_TIMEOUT;
+    private Thread mOutputReader;
+    private ExitListener mExitListener;
+    private volatile boolean mStopping = false;
+    private volatile boolean mExited = false;
 
+    /**
+     * Notified when the client exits without stopClient() being called, on whichever
+     * thread saw the exit.
+     */
+    public interface ExitListener {
+        /**
+         * @param client - the client that exited
+         * @param error - why it exited, null if the test ran to its end
+         */
+        void onExit(IperfClient client, String error);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param activity - PMC main activity
+     * @param serverAddress - iperf3 server
+     * @param serverPort - iperf3 server port
+     * @param bandWidthInMbps - iperf3 bandwidth, e.g. "1M"
+     * @param logFile - file receiving the client output
+     * @param engine - ENGINE_AUTO, ENGINE_NATIVE or ENGINE_JAVA
+     */
     public IperfClient(PMCMainActivity activity, String serverAddress,
-            String serverPort, String bandWidthInMbps, String logFile) {
+            String serverPort, String bandWidthInMbps, String logFile, String engine) {
         mPMCMainActivity = activity;
+        mEngineMode = engine;
+        mServerAddress = serverAddress;
+        int port = Iperf3Engine.DEFAULT_PORT;
+        try {
+            if (serverPort != null && serverPort.length() > 0) port = Integer.parseInt(serverPort);
+        } catch (NumberFormatException e) {
+            Log.e(PMCMainActivity.TAG, "Invalid iperf server port " + serverPort);
+        }
+        mServerPort = port;
+        mBandwidth = bandWidthInMbps;
         List<String> cmdList = new ArrayList<>();
         cmdList.add(IPERF_COMMAND);
         cmdList.add(IPERF_OPTION_VERBOSE_FLAG);
-        cmdList.add(IPERF_OPTION_UDP_FLAG);
         cmdList.add(IPERF_OPTION_JSON_OUTPUT_FLAG);
         cmdList.add(IPERF_OPTION_INTERVAL_FLAG);
         cmdList.add(Integer.toString(IPERF_OPTION_INTERVAL));
-        cmdList.add(IPERF_OPTION_TIMEOUT_FLAG);
-        cmdList.add(Integer.toString(IPERF_OPTION_TIMEOUT));
         cmdList.add(IPERF_OPTION_TMPDIR_FLAG);
         cmdList.add(activity.getCacheDir().getPath());
         if (serverAddress != null && serverAddress.length() > 0) {
@@ -75,39 +168,404 @@ public class IperfClient {
         mProcessBuilder = new ProcessBuilder(cmdList);
     }
 
+    /**
+     * Returns the log file name with a suffix inserted before its extension, e.g.
+     * iperf.s1.txt for iperf.txt, or the name unchanged if it is empty
+     */
+    static String getLogFile(String logFile, String suffix) {
+        if (logFile == null || logFile.length() == 0) return logFile;
+        int dot = logFile.lastIndexOf('.');
+        if (dot <= logFile.lastIndexOf('/')) return logFile + suffix;
+        return logFile.substring(0, dot) + suffix + logFile.substring(dot);
+    }
+
+    /**
+     * Have the binary print every interval as it ends rather than all of them on
+     * exit. Must be set before the client is started.
+     * @param jsonStream - true to pass --json-stream, which needs iperf3 3.17
+     */
+    public void setJsonStream(boolean jsonStream) {
+        mJsonStream = jsonStream;
+    }
+
+    /**
+     * Number of parallel streams, each at the full bandwidth. Must be set before the
+     * client is started.
+     */
+    public void setParallel(int parallel) {
+        mParallel = parallel;
+    }
+
+    /**
+     * Length of the test, the max iperf3 accepts by default. Must be set before the
+     * client is started.
+     * @param seconds - test duration, at most 86400
+     */
+    public void setDuration(int seconds) {
+        mDuration = seconds;
+    }
+
+    /**
+     * Must be set before the client is started.
+     * @param protocol - PROTOCOL_UDP, the default, or PROTOCOL_TCP
+     */
+    public void setProtocol(String protocol) {
+        mProtocol = protocol;
+    }
+
+    /**
+     * Must be set before the client is started.
+     * @param direction - DIRECTION_SEND, the default, DIRECTION_REVERSE or DIRECTION_BIDIR
+     */
+    public void setDirection(String direction) {
+        mDirection = direction;
+    }
+
+    /**
+     * Socket buffer size, e.g. "256K". Must be set before the client is started.
+     * @param window - iperf3 -w value, empty for the system default
+     */
+    public void setWindow(String window) {
+        mWindow = window;
+    }
+
+    /**
+     * Length of every write, e.g. "1400" for UDP datagrams. Must be set before the
+     * client is started.
+     * @param length - iperf3 -l value, empty for the iperf3 default
+     */
+    public void setLength(String length) {
+        mLength = length;
+    }
+
+    /**
+     * Returns the protocol and direction of the test, e.g. "tcp-reverse"
+     */
+    public String getMode() {
+        return mProtocol + "-" + mDirection;
+    }
+
+    public void setExitListener(ExitListener listener) {
+        mExitListener = listener;
+    }
+
     /**
      * Start the iperf client
      */
     public void startClient() {
+        boolean udp = mProtocol.equalsIgnoreCase(PROTOCOL_UDP);
+        boolean send = mDirection.equalsIgnoreCase(DIRECTION_SEND);
+        if ((!udp && !mProtocol.equalsIgnoreCase(PROTOCOL_TCP)) || (!send
+                && !mDirection.equalsIgnoreCase(DIRECTION_REVERSE)
+                && !mDirection.equalsIgnoreCase(DIRECTION_BIDIR))) {
+            Log.e(PMCMainActivity.TAG, "Invalid iperf mode " + getMode());
+            mPMCMainActivity.updateProgressStatus("Invalid iperf mode " + getMode());
+            notifyExit("Invalid iperf mode " + getMode());
+            return;
+        }
+        if (udp) mProcessBuilder.command().add(IPERF_OPTION_UDP_FLAG);
+        if (mDirection.equalsIgnoreCase(DIRECTION_REVERSE)) {
+            mProcessBuilder.command().add(IPERF_OPTION_REVERSE_FLAG);
+        } else if (mDirection.equalsIgnoreCase(DIRECTION_BIDIR)) {
+            mProcessBuilder.command().add(IPERF_OPTION_BIDIR_FLAG);
+        }
+        if (mWindow != null && mWindow.length() > 0) {
+            mProcessBuilder.command().add(IPERF_OPTION_WINDOW_FLAG);
+            mProcessBuilder.command().add(mWindow);
+        }
+        if (mLength != null && mLength.length() > 0) {
+            mProcessBuilder.command().add(IPERF_OPTION_LENGTH_FLAG);
+            mProcessBuilder.command().add(mLength);
+        }
+        mProcessBuilder.command().add(IPERF_OPTION_TIMEOUT_FLAG);
+        mProcessBuilder.command().add(Integer.toString(mDuration));
+        if (mJsonStream) mProcessBuilder.command().add(IPERF_OPTION_JSON_STREAM_FLAG);
+        if (mParallel > 1) {
+            mProcessBuilder.command().add(IPERF_OPTION_PARALLEL_FLAG);
+            mProcessBuilder.command().add(Integer.toString(mParallel));
+        }
         Log.i(PMCMainActivity.TAG, "Starting iperf client: " + mProcessBuilder.command());
         PowerManager pm = (PowerManager) mPMCMainActivity.getSystemService(Context.POWER_SERVICE);
         mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "WIFITEST");
         // Acquire the lock
         mWakeLock.acquire();
+        if (!mEngineMode.equalsIgnoreCase(ENGINE_JAVA)) {
+            try {
+                OutputStream tee = null;
+                if (mLogFile != null) {
+                    // Truncate, then append along with the binary's stderr
+                    new FileOutputStream(mLogFile).close();
+                    mProcessBuilder.redirectError(ProcessBuilder.Redirect.appendTo(mLogFile));
+                    tee = new BufferedOutputStream(new FileOutputStream(mLogFile, true),
+                            TEE_BUFFER_SIZE);
+                } else {
+                    mProcessBuilder.redirectError(new File("/dev/null"));
+                }
+                try {
+                    mProcess = mProcessBuilder.start();
+                } catch (IOException e) {
+                    if (tee != null) tee.close();
+                    throw e;
+                }
+                startOutputReader(mProcess, tee);
+                return;
+            } catch (Exception e) {
+                Log.e(PMCMainActivity.TAG, "Starting iperf client failed: " + e);
+                if (!mEngineMode.equalsIgnoreCase(ENGINE_AUTO)) {
+                    mPMCMainActivity.updateProgressStatus("Starting iperf client failed");
+                    releaseWakeLock();
+                    notifyExit("Starting iperf client failed: " + e);
+                    return;
+                }
+            }
+        }
+        startEngine();
+    }
+
+    private void startOutputReader(final Process process, OutputStream tee) {
+        InputStream output = process.getInputStream();
+        final InputStream input = tee == null ? output : new TeeInputStream(output, tee);
+        mOutputReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new IperfJsonParser(mStats, mReverseStats).parse(
+                            new InputStreamReader(input, StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    Log.e(PMCMainActivity.TAG, "Parsing iperf output failed: " + e);
+                    // Keep draining, a full pipe would block the binary
+                    byte[] buffer = new byte[TEE_BUFFER_SIZE];
+                    try {
+                        while (input.read(buffer) != -1) {
+                            // Only the tee wants these bytes
+                        }
+                    } catch (IOException ignored) {
+                        // The binary is gone
+                    }
+                } finally {
+                    try {
+                        input.close();
+                    } catch (IOException e) {
+                        Log.e(PMCMainActivity.TAG, "Closing iperf log failed: " + e);
+                    }
+                }
+                Log.i(PMCMainActivity.TAG, "iperf output over: " + mStats.getStats());
+                // The output is closed once the binary exits, whether or not it was asked to
+                int exitCode;
+                try {
+                    exitCode = process.waitFor();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                releaseWakeLock();
+                if (exitCode == 0) {
+                    notifyExit(null);
+                } else {
+                    // iperf3 reports why in its JSON output, if it got that far
+                    String error = mStats.getError();
+                    notifyExit(error != null ? error : "iperf3 exited with code " + exitCode);
+                }
+            }
+        }, "IperfOutput");
+        mOutputReader.start();
+    }
+
+    private void startEngine() {
+        if (!mDirection.equalsIgnoreCase(DIRECTION_SEND)) {
+            String error = "The in process iperf3 client cannot run " + getMode() + " tests";
+            Log.e(PMCMainActivity.TAG, error);
+            mPMCMainActivity.updateProgressStatus(error);
+            releaseWakeLock();
+            notifyExit(error);
+            return;
+        }
+        long bandwidth;
+        int window;
+        int length;
         try {
-            mProcessBuilder.redirectOutput(mLogFile);
-            mProcessBuilder.redirectError(mLogFile);
-            mProcess = mProcessBuilder.start();
-        } catch (Exception e) {
-            Log.e(PMCMainActivity.TAG, "Starting iperf client failed: " + e);
-            mPMCMainActivity.updateProgressStatus("Starting iperf client failed");
+            // Like the binary without -b: 1 Mbit/s for UDP, unlimited for TCP
+            bandwidth = mBandwidth == null || mBandwidth.length() == 0 ? -1
+                    : Iperf3Engine.parseBandwidth(mBandwidth);
+            window = mWindow == null || mWindow.length() == 0 ? 0
+                    : Iperf3Engine.parseSize(mWindow);
+            length = mLength == null || mLength.length() == 0 ? 0
+                    : Iperf3Engine.parseSize(mLength);
+        } catch (IllegalArgumentException e) {
+            Log.e(PMCMainActivity.TAG, e.getMessage());
+            mPMCMainActivity.updateProgressStatus(e.getMessage());
+            releaseWakeLock();
+            notifyExit(e.getMessage());
+            return;
+        }
+        if (mLogFile != null) {
+            try {
+                mEngineLog = new OutputStreamWriter(new FileOutputStream(mLogFile),
+                        StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                Log.e(PMCMainActivity.TAG, "Cannot write iperf log " + mLogFile + ": " + e);
+            }
         }
+        Log.i(PMCMainActivity.TAG, "Starting in process iperf3 client to " + mServerAddress
+                + ":" + mServerPort);
+        // Same test as the binary would run
+        mEngine = new Iperf3Engine(mServerAddress, mServerPort,
+                mProtocol.equalsIgnoreCase(PROTOCOL_UDP), bandwidth, length,
+                mDuration, IPERF_OPTION_INTERVAL, new Iperf3Engine.Listener() {
+                    @Override
+                    public void onInterval(Iperf3Engine.Interval interval) {
+                        // A sender knows neither jitter nor loss
+                        mStats.addInterval(interval.startSeconds, interval.endSeconds,
+                                interval.getBitsPerSecond(), -1, -1, interval.packets);
+                        writeEngineLog(interval.toJson());
+                        final String status = "iperf3 :: " + interval;
+                        mPMCMainActivity.runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                mPMCMainActivity.updateProgressStatus(status);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onFinished(String error) {
+                        final String stats = mEngine.getStats();
+                        Log.i(PMCMainActivity.TAG, "iperf3 test over: " + stats);
+                        writeEngineLog("{\"end\":" + mEngine.toJson() + "}");
+                        closeEngineLog();
+                        mEngine.copyServerTotals(mStats);
+                        releaseWakeLock();
+                        notifyExit(error);
+                        mPMCMainActivity.runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                mPMCMainActivity.updateProgressStatus("iperf3 :: " + stats);
+                            }
+                        });
+                    }
+                });
+        mEngine.setParallel(mParallel);
+        mEngine.setWindow(window);
+        mEngine.start();
+    }
+
+    private void notifyExit(String error) {
+        if (!mStopping && mExitListener != null) mExitListener.onExit(this, error);
+        // After the listener, so whoever sees the exit also sees what it recorded
+        mExited = true;
+    }
+
+    /**
+     * Returns whether the binary or the engine has exited, on its own or stopped
+     */
+    public boolean hasExited() {
+        return mExited;
+    }
+
+    private synchronized void writeEngineLog(String line) {
+        if (mEngineLog == null) return;
+        try {
+            mEngineLog.write(line);
+            mEngineLog.write('\n');
+            mEngineLog.flush();
+        } catch (IOException e) {
+            Log.e(PMCMainActivity.TAG, "Writing iperf log failed: " + e);
+        }
+    }
+
+    private synchronized void closeEngineLog() {
+        if (mEngineLog == null) return;
+        try {
+            mEngineLog.close();
+        } catch (IOException e) {
+            Log.e(PMCMainActivity.TAG, "Closing iperf log failed: " + e);
+        }
+        mEngineLog = null;
+    }
+
+    private synchronized void releaseWakeLock() {
+        if (mWakeLock != null && mWakeLock.isHeld()) mWakeLock.release();
+    }
+
+    /**
+     * Returns the intervals reported so far, by the binary or the engine
+     */
+    public IperfStats getIntervalStats() {
+        return mStats;
+    }
+
+    /**
+     * Returns the mode and the latest and aggregate interval stats, of each direction of
+     * a bidirectional test, and for the in process client its own view of the test
+     */
+    public String getStats() {
+        if (mEngine != null) {
+            return getMode() + " " + mStats.getStats() + "; engine: " + mEngine.getStats();
+        }
+        if (mDirection.equalsIgnoreCase(DIRECTION_BIDIR)) {
+            return getMode() + " send: " + mStats.getStats() + "\nreverse: "
+                    + mReverseStats.getStats();
+        }
+        return getMode() + " " + mStats.getStats();
     }
 
     /**
      * Stop the iperf client
      */
     public void stopClient() {
+        mStopping = true;
+        if (mEngine != null) {
+            Log.i(PMCMainActivity.TAG, "Stopping in process iperf3 client");
+            // The results are exchanged and the wakelock released on the engine thread
+            mEngine.stop();
+            return;
+        }
         if (mProcess != null) {
             Log.i(PMCMainActivity.TAG, "Stopping iperf client: " + mProcessBuilder.command());
             try {
                 mProcess.destroy();
                 mProcess.waitFor();
+                // Let the tee flush what the binary printed last
+                if (mOutputReader != null) mOutputReader.join(OUTPUT_READER_JOIN_MILLIS);
             } catch (Exception e) {
                 Log.e(PMCMainActivity.TAG, "Stopping iperf client failed: " + e);
             }
-            mWakeLock.release();
+            releaseWakeLock();
             mProcess = null;
         }
     }
+
+    /**
+     * Copies everything read from the binary's output into the log file.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+        private final OutputStream mTee;
+
+        TeeInputStream(InputStream input, OutputStream tee) {
+            super(input);
+            mTee = tee;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) mTee.write(b);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) mTee.write(buffer, offset, read);
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                mTee.close();
+            }
+        }
+    }
 }
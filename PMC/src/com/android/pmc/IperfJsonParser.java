@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Incremental parser of iperf3 JSON output, feeding IperfStats as the output arrives.
+ *
+ * Two shapes are understood. With --json-stream, iperf3 writes one object per event
+ * as the test runs:
+ *
+ *   {"event":"interval","data":{"streams":[..],"sum":{..}}}
+ *   {"event":"end","data":{"sum":{..},..}}
+ *
+ * With plain -J it writes one document only when it exits, whose "intervals" array
+ * and "end" object are parsed the same way. Values are pulled from the token stream,
+ * so no document is ever held in memory.
+ *
+ * In --bidir tests the totals of the server to client direction are reported next to
+ * the others with a "_bidir_reverse" suffix, and go to their own IperfStats.
+ */
+public class IperfJsonParser {
+    private static final String BIDIR_REVERSE_SUFFIX = "_bidir_reverse";
+
+    private final IperfStats mStats;
+    private final IperfStats mReverseStats;
+
+    public IperfJsonParser(IperfStats stats) {
+        this(stats, null);
+    }
+
+    /**
+     * @param stats - receives the intervals of the test, client to server in --bidir
+     * @param reverseStats - receives the server to client intervals of --bidir, or null
+     */
+    public IperfJsonParser(IperfStats stats, IperfStats reverseStats) {
+        mStats = stats;
+        mReverseStats = reverseStats;
+    }
+
+    /**
+     * Parse every top level value until the end of the input.
+     *
+     * @param input - iperf3 output
+     * @throws IOException on read errors or malformed JSON
+     */
+    public void parse(Reader input) throws IOException {
+        JsonReader reader = new JsonReader(input);
+        // Accept a stream of top level objects rather than a single document
+        reader.setLenient(true);
+        try {
+            while (reader.peek() != JsonToken.END_DOCUMENT) {
+                if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    reader.skipValue();
+                    continue;
+                }
+                parseTopLevel(reader);
+            }
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed iperf3 output: " + e.getMessage());
+        }
+    }
+
+    private void parseTopLevel(JsonReader reader) throws IOException {
+        String event = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("event")) {
+                event = reader.nextString();
+            } else if (name.equals("data") && event != null) {
+                parseEvent(reader, event);
+            } else if (name.equals("intervals")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    parseInterval(reader);
+                }
+                reader.endArray();
+            } else if (name.equals("end")) {
+                parseEnd(reader);
+            } else if (name.equals("error")) {
+                mStats.setError(reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void parseEvent(JsonReader reader, String event) throws IOException {
+        if (event.equals("interval")) {
+            parseInterval(reader);
+        } else if (event.equals("end")) {
+            parseEnd(reader);
+        } else if (event.equals("error")) {
+            mStats.setError(reader.nextString());
+        } else {
+            reader.skipValue();
+        }
+    }
+
+    /**
+     * Record the "sum" of an interval object, the streams are not looked at.
+     */
+    private void parseInterval(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            IperfStats stats;
+            if (name.equals("sum")) {
+                stats = mStats;
+            } else if (name.equals("sum" + BIDIR_REVERSE_SUFFIX) && mReverseStats != null) {
+                stats = mReverseStats;
+            } else {
+                reader.skipValue();
+                continue;
+            }
+            Sum sum = parseSum(reader);
+            if (!sum.omitted) {
+                stats.addInterval(sum.start, sum.end, sum.bitsPerSecond, sum.jitterMillis,
+                        sum.lostPackets, sum.packets);
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Keep the "sum", "sum_sent" and "sum_received" totals of the end object. The
+     * received throughput is that of "sum_received" when there is one, TCP, and that
+     * of "sum" otherwise; loss and jitter come from the UDP "sum".
+     */
+    private void parseEnd(JsonReader reader) throws IOException {
+        Map<String, Sum> sums = new LinkedHashMap<String, Sum>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.startsWith("sum")) {
+                sums.put(name, parseSum(reader));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        setEnd(mStats, sums, "");
+        if (mReverseStats != null) setEnd(mReverseStats, sums, BIDIR_REVERSE_SUFFIX);
+    }
+
+    private static void setEnd(IperfStats stats, Map<String, Sum> sums, String suffix) {
+        StringBuilder end = new StringBuilder();
+        Sum received = null;
+        Sum loss = null;
+        for (String name : new String[] {"sum", "sum_sent", "sum_received"}) {
+            Sum sum = sums.get(name + suffix);
+            if (sum == null) continue;
+            if (end.length() > 0) end.append(", ");
+            end.append(name).append(' ').append(sum);
+            if (name.equals("sum_received") || (name.equals("sum") && received == null)) {
+                received = sum;
+            }
+            if (sum.lostPackets >= 0 && (loss == null || name.equals("sum"))) loss = sum;
+        }
+        if (end.length() > 0) stats.setEnd(end.toString());
+        if (received != null) {
+            if (loss != null) {
+                stats.setEndTotals(received.bitsPerSecond, loss.jitterMillis, loss.lostPackets,
+                        loss.packets);
+            } else {
+                stats.setEndTotals(received.bitsPerSecond, -1, -1, received.packets);
+            }
+        }
+    }
+
+    private static Sum parseSum(JsonReader reader) throws IOException {
+        Sum sum = new Sum();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("start")) {
+                sum.start = reader.nextDouble();
+            } else if (name.equals("end")) {
+                sum.end = reader.nextDouble();
+            } else if (name.equals("bits_per_second")) {
+                sum.bitsPerSecond = (long) reader.nextDouble();
+            } else if (name.equals("jitter_ms")) {
+                sum.jitterMillis = reader.nextDouble();
+            } else if (name.equals("lost_packets")) {
+                sum.lostPackets = reader.nextLong();
+            } else if (name.equals("packets")) {
+                sum.packets = reader.nextLong();
+            } else if (name.equals("omitted")) {
+                sum.omitted = reader.nextBoolean();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return sum;
+    }
+
+    private static class Sum {
+        double start;
+        double end;
+        long bitsPerSecond;
+        double jitterMillis = -1;
+        long lostPackets = -1;
+        long packets;
+        boolean omitted;
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format("[%.2f-%.2f s] bps=%d",
+                    start, end, bitsPerSecond));
+            if (jitterMillis >= 0) sb.append(String.format(" jitter=%.3fms", jitterMillis));
+            if (lostPackets >= 0) {
+                sb.append(" lost=").append(lostPackets).append('/').append(packets);
+            } else if (packets > 0) {
+                sb.append(" packets=").append(packets);
+            }
+            return sb.toString();
+        }
+    }
+}
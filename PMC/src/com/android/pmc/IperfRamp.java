@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Steps the offered load of an iperf test through a schedule of bandwidths.
+ *
+ * A schedule is described by a spec string, one ';' separated entry per step or ramp,
+ * with dwell times in seconds:
+ *
+ *   <bandwidth>:<dwell>                    one step, e.g. 10M:60
+ *   ramp:<from>:<to>:<steps>:<dwell>       steps evenly spaced from one bandwidth to
+ *                                          the other, both included
+ *
+ * e.g. "1M:60;10M:60;50M:60" or "ramp:1M:50M:8:60". Every step is its own iperf
+ * test, running for the dwell time. Its start and end times go to the timeline of
+ * the IPERFPOWER log, and the achieved rate and loss reported by the server to its
+ * status lines, so the power of each step can be matched with its throughput.
+ */
+public class IperfRamp {
+    public static final String TAG = "IPERFPOWER";
+    private static final String RAMP = "ramp";
+
+    private final PMCMainActivity mPMCMainActivity;
+    private final String mServerAddress;
+    private final String mServerPort;
+    private final String mLogFile;
+    private final String mEngine;
+    private final boolean mJsonStream;
+    private final long[] mBandwidths;
+    private final int[] mDwellSeconds;
+    // Results of every step, in wall clock milliseconds for the PMC timeline
+    private final long[] mStartMillis;
+    private final long[] mEndMillis;
+    private final long[] mAchievedBps;
+    private final double[] mJitterMillis;
+    private final long[] mLostPackets;
+    private final long[] mPackets;
+    private final String[] mErrors;
+    private int mStep = -1;
+    private boolean mStopped = true;
+    private IperfClient mClient;
+    private PMCStatusLogger mPMCStatusLogger;
+    private PowerManager.WakeLock mWakeLock;
+
+    /**
+     * Constructor
+     *
+     * @param activity - PMC main activity
+     * @param schedule - schedule spec, see the class comment
+     * @param serverAddress - iperf3 server
+     * @param serverPort - iperf3 server port
+     * @param logFile - base name of the per step log files, may be empty
+     * @param engine - IperfClient engine of every step
+     * @param jsonStream - whether the binary streams its JSON output
+     * @throws IllegalArgumentException if the spec is malformed
+     */
+    public IperfRamp(PMCMainActivity activity, String schedule, String serverAddress,
+                     String serverPort, String logFile, String engine, boolean jsonStream) {
+        mPMCMainActivity = activity;
+        mServerAddress = serverAddress;
+        mServerPort = serverPort;
+        mLogFile = logFile;
+        mEngine = engine;
+        mJsonStream = jsonStream;
+        List<long[]> steps = new ArrayList<long[]>();
+        for (String entry : schedule.split(";")) {
+            entry = entry.trim();
+            if (entry.length() > 0) parseEntry(entry, steps);
+        }
+        if (steps.isEmpty()) throw new IllegalArgumentException("Empty iperf ramp schedule");
+        int count = steps.size();
+        mBandwidths = new long[count];
+        mDwellSeconds = new int[count];
+        for (int i = 0; i < count; i++) {
+            mBandwidths[i] = steps.get(i)[0];
+            mDwellSeconds[i] = (int) steps.get(i)[1];
+        }
+        mStartMillis = new long[count];
+        mEndMillis = new long[count];
+        mAchievedBps = new long[count];
+        mJitterMillis = new double[count];
+        mLostPackets = new long[count];
+        mPackets = new long[count];
+        mErrors = new String[count];
+    }
+
+    /**
+     * Add the steps of one schedule entry as {bandwidth, dwell} pairs
+     */
+    private static void parseEntry(String entry, List<long[]> steps) {
+        String[] parts = entry.split(":");
+        if (parts[0].trim().equalsIgnoreCase(RAMP)) {
+            if (parts.length != 5) {
+                throw new IllegalArgumentException("Expected ramp:<from>:<to>:<steps>:<dwell>: "
+                        + entry);
+            }
+            long from = Iperf3Engine.parseBandwidth(parts[1].trim());
+            long to = Iperf3Engine.parseBandwidth(parts[2].trim());
+            int count = parsePositive(parts[3], entry);
+            int dwell = parsePositive(parts[4], entry);
+            for (int i = 0; i < count; i++) {
+                long bandwidth = count == 1 ? from : from + (to - from) * i / (count - 1);
+                steps.add(new long[] {bandwidth, dwell});
+            }
+            return;
+        }
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Expected <bandwidth>:<dwell>: " + entry);
+        }
+        steps.add(new long[] {Iperf3Engine.parseBandwidth(parts[0].trim()),
+                parsePositive(parts[1], entry)});
+    }
+
+    private static int parsePositive(String value, String entry) {
+        int n;
+        try {
+            n = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number in iperf ramp: " + entry);
+        }
+        if (n <= 0) throw new IllegalArgumentException("Invalid number in iperf ramp: " + entry);
+        return n;
+    }
+
+    /**
+     * Start the first step, with a fresh IPERFPOWER log
+     */
+    public synchronized void start() {
+        if (!mStopped) return;
+        mStopped = false;
+        mPMCStatusLogger = PMCStatusLogger.open(TAG + ".log", TAG);
+        PowerManager pm = (PowerManager) mPMCMainActivity.getSystemService(Context.POWER_SERVICE);
+        // Every step holds its own wakelock, this one covers the gaps between them
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "IPERFRAMP");
+        mWakeLock.acquire();
+        startStep(0);
+    }
+
+    /**
+     * Stop the current step, keeping what it achieved so far
+     */
+    public synchronized void stop() {
+        if (mStopped) return;
+        mStopped = true;
+        if (mClient != null) {
+            mClient.stopClient();
+            finishStep("Stopped");
+        }
+        finish();
+    }
+
+    private synchronized void startStep(int step) {
+        if (mStopped) return;
+        mStep = step;
+        Log.i(TAG, "Starting iperf ramp step " + step + " bandwidth=" + mBandwidths[step]
+                + " dwell=" + mDwellSeconds[step] + "s");
+        final IperfClient client = new IperfClient(mPMCMainActivity, mServerAddress,
+                mServerPort, Long.toString(mBandwidths[step]),
+                IperfClient.getLogFile(mLogFile, ".step" + step), mEngine);
+        client.setJsonStream(mJsonStream);
+        client.setDuration(mDwellSeconds[step]);
+        client.setExitListener(new IperfClient.ExitListener() {
+            @Override
+            public void onExit(IperfClient client, String error) {
+                onStepExit(client, error);
+            }
+        });
+        mClient = client;
+        mStartMillis[step] = System.currentTimeMillis();
+        mPMCStatusLogger.logStatus("STEP " + step + " START bandwidth=" + mBandwidths[step]);
+        mPMCMainActivity.updateProgressStatus("iperf ramp step " + step + " of "
+                + mBandwidths.length + ": " + mBandwidths[step] + " bps");
+        client.startClient();
+    }
+
+    private synchronized void onStepExit(IperfClient client, String error) {
+        if (mStopped || client != mClient) return;
+        finishStep(error);
+        final int next = mStep + 1;
+        if (next == mBandwidths.length) {
+            mStopped = true;
+            finish();
+            return;
+        }
+        // IperfClient reports start failures on the UI
+        mPMCMainActivity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                startStep(next);
+            }
+        });
+    }
+
+    /**
+     * Record the results of the current step and add it to the timeline
+     */
+    private void finishStep(String error) {
+        int step = mStep;
+        mEndMillis[step] = System.currentTimeMillis();
+        IperfStats stats = mClient.getIntervalStats();
+        mAchievedBps[step] = stats.getEndBitsPerSecond();
+        if (mAchievedBps[step] < 0) {
+            // No server results, e.g. when stopped, so only the sender side is known
+            mAchievedBps[step] = stats.getAggregateBitsPerSecond();
+        }
+        mJitterMillis[step] = stats.getEndJitterMillis();
+        mLostPackets[step] = stats.getEndLostPackets();
+        mPackets[step] = stats.getEndPackets();
+        mErrors[step] = error;
+        mClient = null;
+        mPMCStatusLogger.logAlarmTimes(mStartMillis[step] / 1000.0, mEndMillis[step] / 1000.0);
+        mPMCStatusLogger.logStatus("STEP " + step + " END " + getStepStats(step));
+        Log.i(TAG, "iperf ramp step " + step + ": " + getStepStats(step));
+    }
+
+    private void finish() {
+        mPMCStatusLogger.flash();  // To flash out timestamps into log file
+        mPMCStatusLogger.close();
+        if (mWakeLock != null && mWakeLock.isHeld()) mWakeLock.release();
+        mPMCMainActivity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mPMCMainActivity.updateProgressStatus("iperf ramp done");
+            }
+        });
+    }
+
+    private String getStepStats(int step) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("bandwidth=").append(mBandwidths[step])
+                .append(" dwell=").append(mDwellSeconds[step]).append('s')
+                .append(String.format(" start=%.3f end=%.3f", mStartMillis[step] / 1000.0,
+                        mEndMillis[step] / 1000.0))
+                .append(" achievedBps=").append(mAchievedBps[step]);
+        if (mJitterMillis[step] >= 0) {
+            sb.append(String.format(" jitter=%.3fms", mJitterMillis[step]));
+        }
+        if (mLostPackets[step] >= 0) {
+            sb.append(String.format(" lost=%d/%d (%.2f%%)", mLostPackets[step], mPackets[step],
+                    mPackets[step] == 0 ? 0 : 100.0 * mLostPackets[step] / mPackets[step]));
+        }
+        if (mErrors[step] != null) sb.append(" error=").append(mErrors[step]);
+        return sb.toString();
+    }
+
+    /**
+     * Returns the step being run and the results of every finished step
+     */
+    public synchronized String getStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("steps=").append(mBandwidths.length).append(" current=").append(mStep)
+                .append(mStopped ? " stopped" : " running");
+        for (int i = 0; i < mBandwidths.length; i++) {
+            sb.append("\nstep ").append(i).append(": ");
+            if (mEndMillis[i] != 0) {
+                sb.append(getStepStats(i));
+            } else {
+                sb.append("bandwidth=").append(mBandwidths[i])
+                        .append(" dwell=").append(mDwellSeconds[i]).append('s')
+                        .append(i == mStep && mClient != null ? " running" : " pending");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+/**
+ * Ring buffer of iperf intervals, with aggregates over the whole test.
+ *
+ * The last CAPACITY intervals are kept in primitive arrays, overwriting the oldest,
+ * so a day long test uses the same memory as a short one. Totals, loss and the
+ * worst jitter are accumulated over every interval ever added. Jitter and loss are
+ * only known to the receiving side; intervals reported by a sender add -1 for them.
+ */
+public class IperfStats {
+    public static final int CAPACITY = 1024;
+
+    private final double[] mStartSeconds = new double[CAPACITY];
+    private final double[] mEndSeconds = new double[CAPACITY];
+    private final long[] mBitsPerSecond = new long[CAPACITY];
+    private final double[] mJitterMillis = new double[CAPACITY];
+    private final long[] mLostPackets = new long[CAPACITY];
+    private final long[] mPackets = new long[CAPACITY];
+    // Index of the next interval written, and number of intervals held
+    private int mHead;
+    private int mSize;
+
+    private long mIntervalCount;
+    private double mTotalSeconds;
+    private double mTotalBits;
+    private long mTotalPackets;
+    private long mTotalLostPackets;
+    private long mLossPackets;
+    private double mMaxJitterMillis = -1;
+    private String mEnd;
+    private long mEndBitsPerSecond = -1;
+    private double mEndJitterMillis = -1;
+    private long mEndLostPackets = -1;
+    private long mEndPackets;
+    private String mError;
+
+    /**
+     * Add one interval, replacing the oldest once the buffer is full
+     *
+     * @param startSeconds - interval start from the start of the test
+     * @param endSeconds - interval end from the start of the test
+     * @param bitsPerSecond - throughput over the interval
+     * @param jitterMillis - receiver jitter, -1 if unknown
+     * @param lostPackets - packets lost in the interval, -1 if unknown
+     * @param packets - packets sent or received in the interval
+     */
+    public synchronized void addInterval(double startSeconds, double endSeconds,
+                                         long bitsPerSecond, double jitterMillis,
+                                         long lostPackets, long packets) {
+        mStartSeconds[mHead] = startSeconds;
+        mEndSeconds[mHead] = endSeconds;
+        mBitsPerSecond[mHead] = bitsPerSecond;
+        mJitterMillis[mHead] = jitterMillis;
+        mLostPackets[mHead] = lostPackets;
+        mPackets[mHead] = packets;
+        mHead = (mHead + 1) % CAPACITY;
+        if (mSize < CAPACITY) mSize++;
+
+        mIntervalCount++;
+        double seconds = endSeconds - startSeconds;
+        mTotalSeconds += seconds;
+        mTotalBits += bitsPerSecond * seconds;
+        mTotalPackets += packets;
+        if (lostPackets >= 0) {
+            mTotalLostPackets += lostPackets;
+            mLossPackets += packets;
+        }
+        mMaxJitterMillis = Math.max(mMaxJitterMillis, jitterMillis);
+    }
+
+    /**
+     * Keep the end of test summary reported by iperf
+     */
+    public synchronized void setEnd(String end) {
+        mEnd = end;
+    }
+
+    /**
+     * Keep the totals of the receiving side reported at the end of the test
+     *
+     * @param bitsPerSecond - received throughput
+     * @param jitterMillis - receiver jitter, -1 if unknown
+     * @param lostPackets - packets lost, -1 if unknown
+     * @param packets - packets sent
+     */
+    public synchronized void setEndTotals(long bitsPerSecond, double jitterMillis,
+                                          long lostPackets, long packets) {
+        mEndBitsPerSecond = bitsPerSecond;
+        mEndJitterMillis = jitterMillis;
+        mEndLostPackets = lostPackets;
+        mEndPackets = packets;
+    }
+
+    /**
+     * Returns the received throughput at the end of the test, -1 until it is over
+     */
+    public synchronized long getEndBitsPerSecond() {
+        return mEndBitsPerSecond;
+    }
+
+    public synchronized double getEndJitterMillis() {
+        return mEndJitterMillis;
+    }
+
+    /**
+     * Returns the packets lost over the whole test, -1 if unknown
+     */
+    public synchronized long getEndLostPackets() {
+        return mEndLostPackets;
+    }
+
+    public synchronized long getEndPackets() {
+        return mEndPackets;
+    }
+
+    public synchronized void setError(String error) {
+        mError = error;
+    }
+
+    public synchronized long getIntervalCount() {
+        return mIntervalCount;
+    }
+
+    public synchronized String getError() {
+        return mError;
+    }
+
+    /**
+     * Returns the throughput of the latest interval, 0 before the first one
+     */
+    public synchronized long getLatestBitsPerSecond() {
+        return mSize == 0 ? 0 : mBitsPerSecond[(mHead + CAPACITY - 1) % CAPACITY];
+    }
+
+    /**
+     * Returns the mean throughput over every interval added
+     */
+    public synchronized long getAggregateBitsPerSecond() {
+        return mTotalSeconds <= 0 ? 0 : (long) (mTotalBits / mTotalSeconds);
+    }
+
+    /**
+     * Returns the latest interval, the aggregate over the whole test, the min and max
+     * throughput over the intervals still buffered and the end summary, if any.
+     */
+    public synchronized String getStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("intervals=").append(mIntervalCount);
+        if (mSize > 0) {
+            int latest = (mHead + CAPACITY - 1) % CAPACITY;
+            sb.append(String.format(" latest: [%.2f-%.2f s] bps=%d", mStartSeconds[latest],
+                    mEndSeconds[latest], mBitsPerSecond[latest]));
+            appendLoss(sb, mJitterMillis[latest], mLostPackets[latest], mPackets[latest]);
+            long minBps = Long.MAX_VALUE;
+            long maxBps = 0;
+            for (int i = 0; i < mSize; i++) {
+                minBps = Math.min(minBps, mBitsPerSecond[i]);
+                maxBps = Math.max(maxBps, mBitsPerSecond[i]);
+            }
+            sb.append(String.format("; aggregate: seconds=%.2f bps=%d packets=%d",
+                    mTotalSeconds, getAggregateBitsPerSecond(), mTotalPackets));
+            if (mMaxJitterMillis >= 0) {
+                sb.append(String.format(" maxJitter=%.3fms", mMaxJitterMillis));
+            }
+            if (mLossPackets > 0) {
+                sb.append(String.format(" lost=%d/%d (%.2f%%)", mTotalLostPackets, mLossPackets,
+                        100.0 * mTotalLostPackets / mLossPackets));
+            }
+            sb.append("; last ").append(mSize).append(" intervals: minBps=").append(minBps)
+                    .append(" maxBps=").append(maxBps);
+        }
+        if (mEnd != null) sb.append("; end: ").append(mEnd);
+        if (mError != null) sb.append("; error: ").append(mError);
+        return sb.toString();
+    }
+
+    private static void appendLoss(StringBuilder sb, double jitterMillis, long lostPackets,
+                                   long packets) {
+        if (jitterMillis >= 0) sb.append(String.format(" jitter=%.3fms", jitterMillis));
+        if (lostPackets >= 0) {
+            sb.append(" lost=").append(lostPackets).append('/').append(packets);
+        } else {
+            sb.append(" packets=").append(packets);
+        }
+    }
+}
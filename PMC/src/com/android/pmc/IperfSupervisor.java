@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs several iperf sessions side by side and restarts the ones that fail.
+ *
+ * Sessions are described by a spec string, one session per ';' separated entry:
+ *
+ *   host:port[:bandwidth[:streams]]
+ *
+ * e.g. "10.10.10.1:5201:8M;10.10.10.1:5202:100K:4" runs an 8 Mbps flow next to four
+ * 100 Kbps ones. An empty host or bandwidth takes the default. Every session is its
+ * own IperfClient, with its own wakelock and its own log file.
+ *
+ * A session whose client exits with an error is restarted after a backoff doubling
+ * from INITIAL_BACKOFF_MILLIS to MAX_BACKOFF_MILLIS with every consecutive failure.
+ * A session that ran for HEALTHY_MILLIS before failing starts over from the initial
+ * backoff, and one failing MAX_CONSECUTIVE_FAILURES times in a row is given up on.
+ * A client that ends without an error ran its whole test and is not restarted.
+ */
+public class IperfSupervisor {
+    public static final String STATE_RUNNING = "running";
+    public static final String STATE_BACKOFF = "backoff";
+    public static final String STATE_FINISHED = "finished";
+    public static final String STATE_FAILED = "failed";
+    public static final String STATE_STOPPED = "stopped";
+
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+    private static final long HEALTHY_MILLIS = 60 * 1000;
+    private static final int MAX_CONSECUTIVE_FAILURES = 10;
+
+    private final PMCMainActivity mPMCMainActivity;
+    private final String mLogFile;
+    private final String mEngine;
+    private final boolean mJsonStream;
+    private final List<Session> mSessions = new ArrayList<Session>();
+    private ScheduledExecutorService mScheduler;
+    private boolean mStopped = true;
+
+    private static class Session {
+        final int index;
+        final String host;
+        final String port;
+        final String bandwidth;
+        final int streams;
+        IperfClient client;
+        String state = STATE_STOPPED;
+        long startedMillis;
+        int restarts;
+        int failures;
+        long backoffMillis = INITIAL_BACKOFF_MILLIS;
+        String lastError;
+
+        Session(int index, String host, String port, String bandwidth, int streams) {
+            this.index = index;
+            this.host = host;
+            this.port = port;
+            this.bandwidth = bandwidth;
+            this.streams = streams;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param activity - PMC main activity
+     * @param sessions - session spec, see the class comment
+     * @param defaultHost - iperf3 server of sessions not naming one
+     * @param defaultBandwidth - bandwidth of sessions not giving one
+     * @param logFile - base name of the per session log files, may be empty
+     * @param engine - IperfClient engine of every session
+     * @param jsonStream - whether the binary streams its JSON output
+     * @throws IllegalArgumentException if the spec is malformed
+     */
+    public IperfSupervisor(PMCMainActivity activity, String sessions, String defaultHost,
+                           String defaultBandwidth, String logFile, String engine,
+                           boolean jsonStream) {
+        mPMCMainActivity = activity;
+        mLogFile = logFile;
+        mEngine = engine;
+        mJsonStream = jsonStream;
+        for (String entry : sessions.split(";")) {
+            entry = entry.trim();
+            if (entry.length() == 0) continue;
+            String[] parts = entry.split(":");
+            if (parts.length < 2 || parts.length > 4) {
+                throw new IllegalArgumentException("Invalid iperf session: " + entry);
+            }
+            String host = parts[0].trim().length() > 0 ? parts[0].trim() : defaultHost;
+            String port = parts[1].trim();
+            try {
+                if (Integer.parseInt(port) <= 0) {
+                    throw new IllegalArgumentException("Invalid iperf session port: " + entry);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid iperf session port: " + entry);
+            }
+            String bandwidth = parts.length > 2 && parts[2].trim().length() > 0
+                    ? parts[2].trim() : defaultBandwidth;
+            int streams = 1;
+            if (parts.length > 3) {
+                try {
+                    streams = Integer.parseInt(parts[3].trim());
+                } catch (NumberFormatException e) {
+                    streams = 0;
+                }
+                if (streams <= 0) {
+                    throw new IllegalArgumentException("Invalid iperf session streams: " + entry);
+                }
+            }
+            mSessions.add(new Session(mSessions.size(), host, port, bandwidth, streams));
+        }
+        if (mSessions.isEmpty()) throw new IllegalArgumentException("No iperf sessions");
+    }
+
+    /**
+     * Start every session
+     */
+    public synchronized void start() {
+        if (!mStopped) return;
+        mStopped = false;
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        for (Session session : mSessions) {
+            startSession(session);
+        }
+    }
+
+    /**
+     * Stop every session and cancel the pending restarts
+     */
+    public synchronized void stop() {
+        if (mStopped) return;
+        mStopped = true;
+        mScheduler.shutdownNow();
+        for (Session session : mSessions) {
+            if (session.client != null) {
+                session.client.stopClient();
+                session.client = null;
+            }
+            session.state = STATE_STOPPED;
+        }
+    }
+
+    private synchronized void startSession(final Session session) {
+        if (mStopped) return;
+        Log.i(PMCMainActivity.TAG, "Starting iperf session " + session.index + " to "
+                + session.host + ":" + session.port + " restarts=" + session.restarts);
+        IperfClient client = new IperfClient(mPMCMainActivity, session.host, session.port,
+                session.bandwidth, getSessionLogFile(session), mEngine);
+        client.setJsonStream(mJsonStream);
+        client.setParallel(session.streams);
+        client.setExitListener(new IperfClient.ExitListener() {
+            @Override
+            public void onExit(IperfClient client, String error) {
+                onSessionExit(session, client, error);
+            }
+        });
+        session.client = client;
+        session.state = STATE_RUNNING;
+        session.startedMillis = SystemClock.elapsedRealtime();
+        client.startClient();
+    }
+
+    /**
+     * Log file of one run of a session, e.g. iperf.s1.r2.txt for the second restart of
+     * session 1, so a restart does not truncate the output of the failed run
+     */
+    private String getSessionLogFile(Session session) {
+        return IperfClient.getLogFile(mLogFile, ".s" + session.index
+                + (session.restarts > 0 ? ".r" + session.restarts : ""));
+    }
+
+    private synchronized void onSessionExit(final Session session, IperfClient client,
+                                            String error) {
+        // A client replaced by a restart, or the whole supervisor stopped
+        if (mStopped || session.client != client) return;
+        if (error == null) {
+            Log.i(PMCMainActivity.TAG, "iperf session " + session.index + " finished");
+            session.state = STATE_FINISHED;
+            return;
+        }
+        session.lastError = error;
+        if (SystemClock.elapsedRealtime() - session.startedMillis >= HEALTHY_MILLIS) {
+            session.failures = 0;
+            session.backoffMillis = INITIAL_BACKOFF_MILLIS;
+        }
+        session.failures++;
+        if (session.failures >= MAX_CONSECUTIVE_FAILURES) {
+            Log.e(PMCMainActivity.TAG, "Giving up on iperf session " + session.index
+                    + " after " + session.failures + " failures: " + error);
+            session.state = STATE_FAILED;
+            return;
+        }
+        long backoff = session.backoffMillis;
+        session.backoffMillis = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        session.state = STATE_BACKOFF;
+        Log.e(PMCMainActivity.TAG, "iperf session " + session.index + " failed: " + error
+                + ", restarting in " + backoff + "ms");
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // IperfClient reports start failures on the UI
+                mPMCMainActivity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (IperfSupervisor.this) {
+                            if (mStopped || !session.state.equals(STATE_BACKOFF)) return;
+                            session.restarts++;
+                            startSession(session);
+                        }
+                    }
+                });
+            }
+        }, backoff, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the summed throughput of the sessions, then for each session its state,
+     * restarts and interval stats
+     */
+    public synchronized String getStats() {
+        long latestBps = 0;
+        long aggregateBps = 0;
+        int running = 0;
+        int restarts = 0;
+        StringBuilder sessions = new StringBuilder();
+        for (Session session : mSessions) {
+            IperfStats stats = session.client != null ? session.client.getIntervalStats() : null;
+            if (session.state.equals(STATE_RUNNING)) {
+                running++;
+                if (stats != null) latestBps += stats.getLatestBitsPerSecond();
+            }
+            if (stats != null) aggregateBps += stats.getAggregateBitsPerSecond();
+            restarts += session.restarts;
+            sessions.append("\nsession ").append(session.index).append(' ')
+                    .append(session.host).append(':').append(session.port)
+                    .append(" streams=").append(session.streams)
+                    .append(" state=").append(session.state)
+                    .append(" restarts=").append(session.restarts)
+                    .append(" failures=").append(session.failures);
+            if (session.lastError != null) {
+                sessions.append(" lastError=").append(session.lastError);
+            }
+            if (session.client != null) sessions.append(": ").append(session.client.getStats());
+        }
+        return "sessions=" + mSessions.size() + " running=" + running + " restarts=" + restarts
+                + " latestBps=" + latestBps + " aggregateBps=" + aggregateBps + sessions;
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HTTP/1.1 GET and POST client on a non blocking SocketChannel.
+ *
+ * The response body is read into one direct buffer that is reused for every read and
+ * every download, and then discarded, so the only work done per byte is the read
+ * itself. Upload bodies are written from one shared read only buffer, so they are
+ * never materialized either. Connect, first byte and last byte are timestamped with
+ * System.nanoTime as soon as the selector reports them. An engine is not thread
+ * safe; use one per thread.
+ *
+ * With keep alive enabled the connection is kept open after a response whose length
+ * is known, and reused by the next download to the same host and port unless it has
+ * been idle longer than the idle timeout or the server closed it in between. A
+ * reused connection that fails before the first response byte is retried once on a
+ * new connection.
+ *
+ * With checksum verification enabled, a response carrying a CHECKSUM_HEADER has the
+ * CRC32C of its body computed in place in the read buffer as it arrives. A body
+ * that ends before its Content-Length raises a TruncatedException.
+ */
+public class NioDownloadEngine {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30 * 1000;
+    // CRC32C of the body as 8 hex digits, sent by PayloadServer
+    public static final String CHECKSUM_HEADER = "X-Content-CRC32C";
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+    private static final int UPLOAD_CHUNK_SIZE = 64 * 1024;
+    // Content does not matter, the same chunk is uploaded over and over
+    private static final ByteBuffer UPLOAD_CHUNK;
+
+    static {
+        ByteBuffer chunk = ByteBuffer.allocateDirect(UPLOAD_CHUNK_SIZE);
+        while (chunk.hasRemaining()) chunk.put((byte) 'x');
+        chunk.flip();
+        UPLOAD_CHUNK = chunk.asReadOnlyBuffer();
+    }
+
+    private final ByteBuffer mBuffer;
+    private final byte[] mHeader = new byte[MAX_HEADER_SIZE];
+    private final Crc32c mCrc = new Crc32c();
+    private boolean mKeepAlive = false;
+    private boolean mVerifyChecksum = false;
+    private long mIdleTimeoutNanos = DEFAULT_IDLE_TIMEOUT_MILLIS * 1000000;
+
+    // Connection kept open between downloads
+    private SocketChannel mChannel;
+    private Selector mSelector;
+    private SelectionKey mKey;
+    private String mHost;
+    private int mPort;
+    private long mIdleSinceNanos;
+
+    private long mConnectCount;
+    private long mReuseCount;
+    private long mIdleExpiredCount;
+    private long mPeerClosedCount;
+    private long mStaleRetryCount;
+
+    public NioDownloadEngine() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param bufferSize - size of the direct buffer the body is read into
+     */
+    public NioDownloadEngine(int bufferSize) {
+        // Little endian lets the CRC consume the buffer 8 bytes at a time
+        mBuffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Keep connections open between downloads or use a new one every time.
+     *
+     * @param keepAlive - true to reuse connections
+     * @param idleTimeoutMillis - an idle connection older than this is not reused
+     */
+    public void setKeepAlive(boolean keepAlive, long idleTimeoutMillis) {
+        mKeepAlive = keepAlive;
+        mIdleTimeoutNanos = idleTimeoutMillis * 1000000;
+        if (!keepAlive) closeConnection();
+    }
+
+    /**
+     * Check the CRC32C of response bodies for which the server sent one.
+     *
+     * @param verify - true to compute the CRC32C of every body that has a
+     *                 CHECKSUM_HEADER
+     */
+    public void setVerifyChecksum(boolean verify) {
+        mVerifyChecksum = verify;
+    }
+
+    /**
+     * Close the idle connection, if any.
+     */
+    public void close() {
+        closeConnection();
+    }
+
+    /**
+     * Returns how many connections were opened and reused, and why idle ones were
+     * dropped.
+     */
+    public String getConnectionStats() {
+        return "connects=" + mConnectCount + " reused=" + mReuseCount + " idleExpired="
+                + mIdleExpiredCount + " peerClosed=" + mPeerClosedCount + " staleRetries="
+                + mStaleRetryCount;
+    }
+
+    /**
+     * Thrown when the connection closes before the body reaches its Content-Length.
+     */
+    public static class TruncatedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final long bodyBytes;
+        public final long contentLength;
+
+        TruncatedException(long bodyBytes, long contentLength) {
+            super("Connection closed after " + bodyBytes + " of " + contentLength + " bytes");
+            this.bodyBytes = bodyBytes;
+            this.contentLength = contentLength;
+        }
+    }
+
+    /**
+     * Timings and size of one download
+     */
+    public static class Result {
+        public int statusCode = -1;
+        // -1 when the server did not send a Content-Length
+        public long contentLength = -1;
+        public long bodyBytes;
+        // Request body bytes, for uploads
+        public long sentBytes;
+        // True when the download ran on a connection kept from a previous one
+        public boolean reused;
+        // True when the server asked for the connection to be closed
+        boolean connectionClose;
+        // From the start of the download until the connection is established, 0 if reused
+        public long connectNanos = -1;
+        // From the request being sent until the first response byte
+        public long ttfbNanos = -1;
+        // From the first response byte until the last body byte, or for uploads from the
+        // first until the last request body byte handed to the socket
+        public long transferNanos = -1;
+        // CRC32C sent by the server and computed over the body, -1 when not checked
+        public long expectedChecksum = -1;
+        public long checksum = -1;
+
+        public long getTotalNanos() {
+            return connectNanos + ttfbNanos + transferNanos;
+        }
+
+        /**
+         * Returns true if the body was checked and its CRC32C does not match
+         */
+        public boolean isCorrupt() {
+            return checksum != expectedChecksum;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("status=%d bytes=%d%s%s%s connect=%.1fms ttfb=%.1fms"
+                    + " transfer=%.1fms", statusCode, bodyBytes,
+                    sentBytes > 0 ? " sent=" + sentBytes : "", reused ? " reused" : "",
+                    checksum == -1 ? "" : String.format(" crc32c=%08x%s", checksum,
+                            isCorrupt() ? String.format("!=%08x", expectedChecksum) : ""),
+                    connectNanos / 1e6, ttfbNanos / 1e6, transferNanos / 1e6);
+        }
+    }
+
+    /**
+     * Download a URL and discard the body.
+     *
+     * @param url - http URL to download
+     * @param timeoutMillis - max time for the whole download
+     * @return the timings, also filled in when the status is not 200
+     * @throws IOException on connection errors, timeout or malformed response
+     */
+    public Result download(URL url, long timeoutMillis) throws IOException {
+        return transfer(url, 0, timeoutMillis);
+    }
+
+    /**
+     * POST generated bytes to a URL. The TTFB then runs from the last body byte handed
+     * to the socket until the response, so it includes draining the socket buffer.
+     *
+     * @param url - http URL to upload to
+     * @param bytes - size of the request body
+     * @param timeoutMillis - max time for the whole upload
+     * @return the timings, also filled in when the status is not 200
+     * @throws IOException on connection errors, timeout or malformed response
+     */
+    public Result upload(URL url, long bytes, long timeoutMillis) throws IOException {
+        return transfer(url, bytes, timeoutMillis);
+    }
+
+    private Result transfer(URL url, long uploadBytes, long timeoutMillis)
+            throws IOException {
+        if (!url.getProtocol().equals("http")) {
+            throw new IOException("Only http URLs are supported: " + url);
+        }
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        String path = url.getFile().length() == 0 ? "/" : url.getFile();
+        // Like HttpURLConnection, the port is only left out when it is the default one
+        String host = port == url.getDefaultPort() ? url.getHost() : url.getHost() + ":" + port;
+        byte[] request = ((uploadBytes > 0 ? "POST " : "GET ") + path + " HTTP/1.1\r\nHost: "
+                + host
+                + (mKeepAlive ? "\r\nConnection: keep-alive" : "\r\nConnection: close")
+                + (uploadBytes > 0 ? "\r\nContent-Type: application/octet-stream"
+                        + "\r\nContent-Length: " + uploadBytes : "")
+                + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        long deadline = System.nanoTime() + timeoutMillis * 1000000;
+        Result result = new Result();
+        boolean completed = false;
+        try {
+            if (reuseConnection(url.getHost(), port)) {
+                result.reused = true;
+                result.connectNanos = 0;
+                try {
+                    exchange(request, uploadBytes, deadline, result);
+                } catch (IOException e) {
+                    if (result.ttfbNanos != -1) throw e;
+                    // The server dropped the connection while it was idle
+                    mStaleRetryCount++;
+                    closeConnection();
+                    result = new Result();
+                    // A stale connection may have used up the whole timeout, e.g. on a read
+                    // timeout, so the fresh connection gets a timeout of its own
+                    long retryDeadline = System.nanoTime() + timeoutMillis * 1000000;
+                    connect(url.getHost(), port, retryDeadline, result);
+                    exchange(request, uploadBytes, retryDeadline, result);
+                }
+            } else {
+                connect(url.getHost(), port, deadline, result);
+                exchange(request, uploadBytes, deadline, result);
+            }
+            completed = true;
+        } finally {
+            if (completed && mKeepAlive && result.contentLength != -1
+                    && !result.connectionClose) {
+                mIdleSinceNanos = System.nanoTime();
+            } else {
+                closeConnection();
+            }
+        }
+        return result;
+    }
+
+    private boolean reuseConnection(String host, int port) throws IOException {
+        if (mChannel == null) return false;
+        if (!mKeepAlive || !host.equals(mHost) || port != mPort) {
+            closeConnection();
+            return false;
+        }
+        if (System.nanoTime() - mIdleSinceNanos > mIdleTimeoutNanos) {
+            mIdleExpiredCount++;
+            closeConnection();
+            return false;
+        }
+        // Nothing is expected on an idle connection, EOF means the server closed it
+        mBuffer.clear();
+        int read;
+        try {
+            read = mChannel.read(mBuffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read != 0) {
+            mPeerClosedCount++;
+            closeConnection();
+            return false;
+        }
+        mReuseCount++;
+        return true;
+    }
+
+    private void connect(String host, int port, long deadline, Result result)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        mSelector = Selector.open();
+        mChannel = SocketChannel.open();
+        mHost = host;
+        mPort = port;
+        mConnectCount++;
+        mChannel.configureBlocking(false);
+        // Request header and body go out without waiting for the server's delayed ACK
+        mChannel.socket().setTcpNoDelay(true);
+        if (mChannel.connect(new InetSocketAddress(host, port))) {
+            mKey = mChannel.register(mSelector, 0);
+        } else {
+            mKey = mChannel.register(mSelector, SelectionKey.OP_CONNECT);
+            while (!mChannel.finishConnect()) {
+                select(mSelector, deadline);
+            }
+        }
+        result.connectNanos = System.nanoTime() - startNanos;
+    }
+
+    private void exchange(byte[] request, long uploadBytes, long deadline, Result result)
+            throws IOException {
+        ByteBuffer out = ByteBuffer.wrap(request);
+        mKey.interestOps(SelectionKey.OP_WRITE);
+        while (out.hasRemaining()) {
+            if (mChannel.write(out) == 0) select(mSelector, deadline);
+        }
+        long uploadStartNanos = System.nanoTime();
+        while (result.sentBytes < uploadBytes) {
+            ByteBuffer chunk = UPLOAD_CHUNK.duplicate();
+            chunk.limit((int) Math.min(uploadBytes - result.sentBytes, UPLOAD_CHUNK_SIZE));
+            int written = mChannel.write(chunk);
+            if (written == 0) {
+                select(mSelector, deadline);
+            } else {
+                result.sentBytes += written;
+            }
+        }
+        long requestSentNanos = System.nanoTime();
+        if (uploadBytes > 0) result.transferNanos = requestSentNanos - uploadStartNanos;
+
+        mKey.interestOps(SelectionKey.OP_READ);
+        int headerLength = 0;
+        int headerEnd = -1;
+        long firstByteNanos = -1;
+        while (true) {
+            mBuffer.clear();
+            int read = mChannel.read(mBuffer);
+            if (read == 0) {
+                select(mSelector, deadline);
+                continue;
+            }
+            long now = System.nanoTime();
+            if (read > 0 && firstByteNanos == -1) {
+                firstByteNanos = now;
+                result.ttfbNanos = firstByteNanos - requestSentNanos;
+            }
+            if (read < 0) {
+                if (headerEnd == -1) throw new IOException("Connection closed in headers");
+                if (result.contentLength != -1 && result.bodyBytes < result.contentLength) {
+                    throw new TruncatedException(result.bodyBytes, result.contentLength);
+                }
+                result.connectionClose = true;
+                if (uploadBytes == 0) result.transferNanos = now - firstByteNanos;
+                if (result.expectedChecksum != -1) result.checksum = mCrc.getValue();
+                return;
+            }
+            mBuffer.flip();
+            if (headerEnd == -1) {
+                // Copy until the blank line, the rest of the buffer is body
+                while (mBuffer.hasRemaining() && headerEnd == -1) {
+                    if (headerLength == MAX_HEADER_SIZE) {
+                        throw new IOException("Response headers too long");
+                    }
+                    mHeader[headerLength++] = mBuffer.get();
+                    if (headerLength >= 4 && mHeader[headerLength - 1] == '\n'
+                            && mHeader[headerLength - 2] == '\r'
+                            && mHeader[headerLength - 3] == '\n'
+                            && mHeader[headerLength - 4] == '\r') {
+                        headerEnd = headerLength;
+                        parseHeader(new String(mHeader, 0, headerLength,
+                                StandardCharsets.ISO_8859_1), result);
+                        if (!mVerifyChecksum) result.expectedChecksum = -1;
+                        mCrc.reset();
+                    }
+                }
+            }
+            if (result.expectedChecksum != -1) {
+                mCrc.update(mBuffer, mBuffer.position(), mBuffer.limit());
+            }
+            result.bodyBytes += mBuffer.remaining();
+            if (result.contentLength != -1 && result.bodyBytes >= result.contentLength) {
+                if (result.bodyBytes > result.contentLength) {
+                    throw new IOException("Received " + result.bodyBytes + " bytes, more than "
+                            + "the Content-Length " + result.contentLength);
+                }
+                if (uploadBytes == 0) result.transferNanos = now - firstByteNanos;
+                if (result.expectedChecksum != -1) result.checksum = mCrc.getValue();
+                return;
+            }
+            if (System.nanoTime() > deadline) {
+                throw new SocketTimeoutException("Download timed out");
+            }
+        }
+    }
+
+    private void closeConnection() {
+        if (mChannel == null) return;
+        try {
+            mChannel.close();
+            mSelector.close();
+        } catch (IOException e) {
+            // Nothing left to do with a connection that fails to close
+        }
+        mChannel = null;
+        mSelector = null;
+        mKey = null;
+    }
+
+    private static void parseHeader(String header, Result result) throws IOException {
+        String[] lines = header.split("\r\n");
+        String[] status = lines[0].split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed status line: " + lines[0]);
+        }
+        try {
+            result.statusCode = Integer.parseInt(status[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line: " + lines[0]);
+        }
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon < 0) continue;
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Connection")) {
+                result.connectionClose = value.equalsIgnoreCase("close");
+            } else if (name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    result.contentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed Content-Length: " + value);
+                }
+            } else if (name.equalsIgnoreCase(CHECKSUM_HEADER)) {
+                try {
+                    result.expectedChecksum = Long.parseLong(value, 16) & 0xFFFFFFFFL;
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed " + CHECKSUM_HEADER + ": " + value);
+                }
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")
+                    && !value.equalsIgnoreCase("identity")) {
+                throw new IOException("Unsupported Transfer-Encoding: " + value);
+            }
+        }
+    }
+
+    private static void select(Selector selector, long deadline) throws IOException {
+        long remainingMillis = (deadline - System.nanoTime()) / 1000000;
+        if (remainingMillis <= 0 || selector.select(remainingMillis) == 0
+                && System.nanoTime() >= deadline) {
+            throw new SocketTimeoutException("Download timed out");
+        }
+        selector.selectedKeys().clear();
+    }
+}
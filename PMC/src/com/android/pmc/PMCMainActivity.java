@@ -24,11 +24,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
-import android.net.wifi.WifiScanner;
-import android.net.wifi.WifiScanner.ChannelSpec;
-import android.net.wifi.WifiScanner.ScanSettings;
 import android.os.Bundle;
 import android.os.PowerManager;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -38,6 +36,15 @@ import android.widget.RadioGroup;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Main class for PMC.
  */
@@ -49,11 +56,36 @@ public class PMCMainActivity extends Activity {
     public static final String SETTING_INTERVAL_KEY = "Interval";
     public static final String SETTING_IPERF_BANDWIDTH_KEY = "IperfBandwidth";
     public static final String SETTING_IPERF_LOGFILE_KEY = "IperfLogfile";
+    public static final String SETTING_IPERF_ENGINE_KEY = "IperfEngine";
+    public static final String SETTING_IPERF_JSON_STREAM_KEY = "IperfJsonStream";
+    public static final String SETTING_IPERF_SESSIONS_KEY = "IperfSessions";
+    public static final String SETTING_IPERF_RAMP_KEY = "IperfRamp";
+    public static final String SETTING_IPERF_PROTOCOL_KEY = "IperfProtocol";
+    public static final String SETTING_IPERF_DIRECTION_KEY = "IperfDirection";
+    public static final String SETTING_IPERF_WINDOW_KEY = "IperfWindow";
+    public static final String SETTING_IPERF_LENGTH_KEY = "IperfLength";
+    public static final String SETTING_GSCAN_PLANS_KEY = "GScanPlans";
+    public static final String SETTING_GSCAN_INCLUDE_DFS_KEY = "GScanIncludeDfs";
+    public static final String SETTING_GSCAN_SCANS_PER_PLAN_KEY = "GScanScansPerPlan";
+    public static final String SETTING_DOWNLOAD_STREAMS_KEY = "DownloadStreams";
+    public static final String SETTING_DOWNLOAD_FILES_KEY = "DownloadFiles";
+    public static final String SETTING_DOWNLOAD_SIZES_KEY = "DownloadSizes";
+    public static final String SETTING_DOWNLOAD_CYCLES_PER_SIZE_KEY = "DownloadCyclesPerSize";
+    public static final String SETTING_UPLOAD_SIZES_KEY = "UploadSizes";
+    public static final String SETTING_DOWNLOAD_KEEP_ALIVE_KEY = "DownloadKeepAlive";
+    public static final String SETTING_DOWNLOAD_IDLE_TIMEOUT_KEY = "DownloadIdleTimeout";
+    public static final String SETTING_DOWNLOAD_VERIFY_KEY = "DownloadVerify";
+    public static final String SETTING_TRAFFIC_MODEL_KEY = "TrafficModel";
+    public static final String SETTING_TRAFFIC_SEED_KEY = "TrafficSeed";
+    public static final String SETTING_GSCAN_BATCH_SIZE_KEY = "GScanBatchSize";
+    public static final String SETTING_GSCAN_REPORT_EVENTS_KEY = "GScanReportEvents";
     private static final String sConnScanAction = "ConnectionScan";
     private static final String sGScanAction = "GScan";
     private static final String sDownloadAction = "DownloadData";
     private static final String SETPARAMS_INTENT_STRING = "com.android.pmc.action.SETPARAMS";
     private static final String AUTOPOWER_INTENT_STRING = "com.android.pmc.action.AUTOPOWER";
+    private static final String SCAN_RESULTS_FILE = "ScanResults.json";
+    private static final String DOWNLOAD_LATENCY_FILE = "DownloadLatency.txt";
 
     TextView mTextView;
     Intent mSettingIntent;
@@ -65,10 +97,38 @@ public class PMCMainActivity extends Activity {
     private int mIntervalMillis = 60 * 1000;
     private String mIperfBandwidth = "1M";
     private String mIperfLogFile = "/sdcard/iperf.txt";
+    private String mIperfEngine = IperfClient.ENGINE_AUTO;
+    private boolean mIperfJsonStream = false;
+    private String mIperfSessions = "";
+    private String mIperfRampSchedule = "";
+    private String mIperfProtocol = IperfClient.PROTOCOL_UDP;
+    private String mIperfDirection = IperfClient.DIRECTION_SEND;
+    private String mIperfWindow = "";
+    private String mIperfLength = "";
+    private int mDownloadStreams = 4;
+    private String mDownloadFiles = "1mb.txt";
+    private String mDownloadSizes = "1024:1048576:4";
+    private int mDownloadCyclesPerSize = 1;
+    private String mUploadSizes = "1048576";
+    private boolean mDownloadKeepAlive = false;
+    private long mDownloadIdleTimeoutMillis = NioDownloadEngine.DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private boolean mDownloadVerify = false;
+    // Empty for downloads every mIntervalMillis
+    private String mTrafficModel = "";
+    private long mTrafficSeed = 0;
+    private String mGScanPlans = ChannelPlan.PRESET_SOCIAL;
+    private boolean mGScanIncludeDfs = false;
+    private int mGScanScansPerPlan = 1;
+    private int mGScanBatchSize = WifiBatchedGScan.DEFAULT_BATCH_SIZE;
+    private String mGScanReportEvents = WifiBatchedGScan.REPORT_BUFFER_FULL;
     private WifiConnScanReceiver mConnSR = null;
     private WifiGScanReceiver mGScanR = null;
+    private WifiBatchedGScan mBatchedGScan = null;
     private WifiDownloadReceiver mDR = null;
+    private PayloadServer mPayloadServer = null;
     private IperfClient mIperfClient = null;
+    private IperfSupervisor mIperfSupervisor = null;
+    private IperfRamp mIperfRamp = null;
     private boolean mTethered = false;
     private RadioGroup mRadioGroup;
     private Button mBtnStart;
@@ -81,6 +141,14 @@ public class PMCMainActivity extends Activity {
     private PowerManager.WakeLock mWakeLock;
     private ConnectivityManager mConnManager;
     private int mProvisionCheckSleep = 1250;
+    private final ConcurrentHashMap<String, LatencyHistogram> mScanLatencyHistograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentHashMap<String, LatencyHistogram> mDownloadLatencyHistograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+    // Stats of the last iperf client run in each mode, e.g. "tcp-reverse"
+    private final ConcurrentHashMap<String, String> mIperfModeResults =
+            new ConcurrentHashMap<String, String>();
+    private final ScanResultStore mScanResultStore = new ScanResultStore();
 
     class OnStartTetheringCallback extends ConnectivityManager.OnStartTetheringCallback {
         @Override
@@ -119,6 +187,9 @@ public class PMCMainActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        stopPayloadServer();
+        stopIperfSessions();
+        stopIperfRamp();
         unregisterReceiver(mPMCReceiver);
     }
 
@@ -144,15 +215,17 @@ public class PMCMainActivity extends Activity {
                     case R.id.rb_mb:
                         startDownloadFile("1mb.txt");
                         break;
+                    case R.id.rb_mb_parallel:
+                        startDownloadFiles(mDownloadFiles.split(","), mDownloadStreams);
+                        break;
                     case R.id.rb_connscan:
                         startConnectivityScan();
                         break;
                     case R.id.rb_gscan2g:
-                        Integer[] channelList = {2412, 2437, 2462};
-                        startGscan(WifiScanner.WIFI_BAND_UNSPECIFIED, channelList);
+                        startGscan(ChannelPlan.PRESET_SOCIAL, false, 1);
                         break;
                     case R.id.rb_gscan_without_dfs:
-                        startGscan(WifiScanner.WIFI_BAND_BOTH, null);
+                        startGscan(ChannelPlan.PRESET_BOTH, false, 1);
                         break;
                     case R.id.rb_iperf_client:
                         startIperfClient();
@@ -173,6 +246,8 @@ public class PMCMainActivity extends Activity {
                 stopDownloadFile();
                 stopGScan();
                 stopIperfClient();
+                stopIperfSessions();
+                stopIperfRamp();
                 stopUSBTethering();
                 mBtnStart.setEnabled(true);
             }
@@ -187,7 +262,163 @@ public class PMCMainActivity extends Activity {
         mTextView.setText(status);
     }
 
+    /**
+     * Returns the scan latency histogram for a scan type and band, kept for the whole
+     * session so restarting a scan keeps adding to it.
+     * @param key
+     */
+    LatencyHistogram getScanLatencyHistogram(String key) {
+        return getHistogram(mScanLatencyHistograms, key);
+    }
+
+    private String getScanLatencyStats() {
+        if (mScanLatencyHistograms.isEmpty()) return "No scan latency recorded";
+        return formatHistograms(mScanLatencyHistograms, "; ");
+    }
+
+    /**
+     * Returns the download phase latency histogram for a file and phase, kept for the
+     * whole session like the scan latency ones.
+     * @param key
+     */
+    LatencyHistogram getDownloadLatencyHistogram(String key) {
+        return getHistogram(mDownloadLatencyHistograms, key);
+    }
+
+    private String getDownloadLatencyStats() {
+        if (mDownloadLatencyHistograms.isEmpty()) return "No download latency recorded";
+        return formatHistograms(mDownloadLatencyHistograms, "; ");
+    }
+
+    /**
+     * Write the download latency histograms into the log directory, one line each.
+     */
+    private void dumpDownloadLatency() {
+        if (mDownloadLatencyHistograms.isEmpty()) return;
+        String path = PMCStatusLogger.LOG_DIR + "/" + DOWNLOAD_LATENCY_FILE;
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(path),
+                StandardCharsets.UTF_8)) {
+            writer.write(formatHistograms(mDownloadLatencyHistograms, "\n"));
+            writer.write("\n");
+        } catch (IOException e) {
+            Log.e(TAG, "Exception writing download latency: " + e);
+        }
+    }
+
+    private static LatencyHistogram getHistogram(
+            ConcurrentHashMap<String, LatencyHistogram> histograms, String key) {
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram previous = histograms.putIfAbsent(key, histogram);
+            if (previous != null) histogram = previous;
+        }
+        return histogram;
+    }
+
+    private static String formatHistograms(Map<String, LatencyHistogram> histograms,
+                                           String separator) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram> entry
+                : new TreeMap<String, LatencyHistogram>(histograms).entrySet()) {
+            if (sb.length() > 0) sb.append(separator);
+            sb.append(entry.getKey()).append(": ").append(entry.getValue().toSummaryString());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the stats of the last iperf client run in each mode, the running one
+     * included
+     */
+    private String getIperfModeResults() {
+        Map<String, String> results = new TreeMap<String, String>(mIperfModeResults);
+        IperfClient client = mIperfClient;
+        // A client that exited on its own left its results to the exit listener
+        if (client != null && !client.hasExited()) {
+            results.put(client.getMode(), "(running) " + client.getStats());
+        }
+        if (results.isEmpty()) return "No iperf results";
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : results.entrySet()) {
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the store shared by all Wi-Fi scans of this session.
+     */
+    ScanResultStore getScanResultStore() {
+        return mScanResultStore;
+    }
+
+    /**
+     * Export a snapshot of the stored scan results as JSON into the log directory.
+     * @return path of the exported file or the error
+     */
+    private String dumpScanResults() {
+        String path = PMCStatusLogger.LOG_DIR + "/" + SCAN_RESULTS_FILE;
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(path),
+                StandardCharsets.UTF_8)) {
+            mScanResultStore.snapshot().writeJson(writer);
+        } catch (IOException e) {
+            Log.e(TAG, "Exception writing scan results: " + e);
+            return "Failed to write scan results: " + e;
+        }
+        return "Scan results written to " + path;
+    }
+
     private void startDownloadFile(String filename) {
+        startDownloadFiles(new String[] {filename}, 1);
+    }
+
+    /**
+     * Download generated payloads of the given sizes, one size after the other, each
+     * for a number of cycles.
+     * @param sizeSpec - sizes as parsed by WifiDownloadReceiver.parseSizes
+     * @param cyclesPerSize
+     */
+    private void startDownloadSweep(String sizeSpec, int cyclesPerSize) {
+        startSizeSweep(PayloadServer.BYTES_PATH, sizeSpec, cyclesPerSize);
+    }
+
+    /**
+     * Upload generated payloads of the given sizes on the download schedule, one size
+     * after the other, each for a number of cycles.
+     * @param sizeSpec - sizes as parsed by WifiDownloadReceiver.parseSizes
+     * @param cyclesPerSize
+     */
+    private void startUploadSweep(String sizeSpec, int cyclesPerSize) {
+        startSizeSweep(PayloadServer.UPLOAD_PATH + "/", sizeSpec, cyclesPerSize);
+    }
+
+    private void startSizeSweep(String path, String sizeSpec, int cyclesPerSize) {
+        long[] sizes;
+        try {
+            sizes = WifiDownloadReceiver.parseSizes(sizeSpec);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, e.getMessage());
+            mTextView.setText(e.getMessage());
+            return;
+        }
+        String[] paths = new String[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            // Relative to the server root, served by PayloadServer
+            paths[i] = path.substring(1) + sizes[i];
+        }
+        startDownloadFiles(paths, 1);
+        if (mDR != null) mDR.setCyclesPerUrl(cyclesPerSize);
+    }
+
+    /**
+     * Download the files over the given number of concurrent streams, stream i
+     * downloading file i modulo the number of files.
+     * @param filenames
+     * @param streams
+     */
+    private void startDownloadFiles(String[] filenames, int streams) {
         // Stop any ongoing download sessions before starting a new instance.
         stopDownloadFile();
         Log.d(TAG, "serverIP ::" + mServerIP + " Port ::" + mServerPort
@@ -198,15 +429,60 @@ public class PMCMainActivity extends Activity {
             errorMsg.show();
             startSettingActivity();
         } else {
-            mDR = new WifiDownloadReceiver(PMCMainActivity.this,
-                    "http://" + mServerIP + ":" + mServerPort + "/" + filename, mIntervalMillis,
-                    mAlarmManager, mPIDownload);
+            TrafficModel trafficModel = null;
+            if (!TextUtils.isEmpty(mTrafficModel)) {
+                try {
+                    trafficModel = TrafficModel.parse(mTrafficModel, mTrafficSeed);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, e.getMessage());
+                    mTextView.setText(e.getMessage());
+                    return;
+                }
+            }
+            String[] urls = new String[filenames.length];
+            for (int i = 0; i < filenames.length; i++) {
+                urls[i] = "http://" + mServerIP + ":" + mServerPort + "/" + filenames[i].trim();
+            }
+            mDR = new WifiDownloadReceiver(PMCMainActivity.this, urls, streams, mIntervalMillis,
+                    mDownloadKeepAlive, mDownloadIdleTimeoutMillis, mAlarmManager, mPIDownload);
+            mDR.setVerifyChecksum(mDownloadVerify);
+            mDR.setTrafficModel(trafficModel);
             registerReceiver(mDR, new IntentFilter(sDownloadAction));
             Log.d(TAG, "Setting download data alarm. Interval: " + mIntervalMillis);
             mDR.scheduleDownload();
             mBtnStart.setEnabled(false);
             mRadioGroup.setFocusable(false);
-            mTextView.setText("Started downloadng " + filename);
+            mTextView.setText("Started downloadng " + TextUtils.join(",", filenames)
+                    + (streams > 1 ? " over " + streams + " streams" : "")
+                    + (mDownloadKeepAlive ? " over kept connections" : "")
+                    + (trafficModel != null ? " with traffic " + trafficModel : ""));
+        }
+    }
+
+    /**
+     * Start the test server on this device, so downloads can run on loopback with
+     * 127.0.0.1 as server IP.
+     * @return status message
+     */
+    private String startPayloadServer(boolean udpEcho) {
+        stopPayloadServer();
+        int port = mServerPort.length() != 0
+                ? Integer.parseInt(mServerPort) : PayloadServer.DEFAULT_PORT;
+        try {
+            mPayloadServer = new PayloadServer(port, udpEcho);
+        } catch (IOException e) {
+            Log.e(TAG, "Exception starting payload server: " + e);
+            return "Failed to start payload server: " + e;
+        }
+        mPayloadServer.start();
+        return "Payload server listening on port " + mPayloadServer.getPort();
+    }
+
+    private void stopPayloadServer() {
+        if (mPayloadServer != null) {
+            Log.d(TAG, "Payload server stopped: " + mPayloadServer.getStats());
+            mPayloadServer.close();
+            mPayloadServer = null;
         }
     }
 
@@ -215,6 +491,8 @@ public class PMCMainActivity extends Activity {
             unregisterReceiver(mDR);
             mDR.cancelDownload();
             mDR = null;
+            Log.i(TAG, "Download latency: " + getDownloadLatencyStats());
+            dumpDownloadLatency();
             mBtnStart.setEnabled(true);
             mRadioGroup.setFocusable(true);
             mTextView.setText("Stopped download");
@@ -237,6 +515,7 @@ public class PMCMainActivity extends Activity {
         if (mConnSR != null) {
             unregisterReceiver(mConnSR);
             mConnSR.cancelConnScan();
+            Log.d(TAG, "Connectivity scan stopped: " + mConnSR.getDispatchStats());
             mConnSR = null;
             mBtnStart.setEnabled(true);
             mRadioGroup.setFocusable(true);
@@ -244,30 +523,80 @@ public class PMCMainActivity extends Activity {
         }
     }
 
-    private void startGscan(int band, Integer[] channelList) {
+    private void startGscan(String planSpecs, boolean includeDfs, int scansPerPlan) {
         // Stop any ongoing scans before starting a new instance.
         stopGScan();
-        ScanSettings scanSettings = new ScanSettings();
-        String message;
-        if (band == WifiScanner.WIFI_BAND_UNSPECIFIED) {
-            ChannelSpec[] channels = new ChannelSpec[channelList.length];
-            for (int i = 0; i < channelList.length; i++) {
-                channels[i] = new ChannelSpec(channelList[i]);
-            }
-            scanSettings.channels = channels;
-            message = "Started GScan for social channels";
-        } else {
-            scanSettings.band = band;
-            message = "Started Gscan for both band without DFS channel";
+        ChannelPlan[] plans;
+        try {
+            plans = ChannelPlan.parseList(planSpecs, includeDfs);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, e.getMessage());
+            mTextView.setText(e.getMessage());
+            return;
+        }
+        StringBuilder message = new StringBuilder("Started GScan for channel plans:");
+        for (ChannelPlan plan : plans) {
+            message.append(' ').append(plan.getName());
         }
         mGScanR = new WifiGScanReceiver(
-                this, scanSettings, mIntervalMillis, mAlarmManager, mPIGScan);
+                this, plans, scansPerPlan, mIntervalMillis, mAlarmManager, mPIGScan);
         registerReceiver(mGScanR, new IntentFilter(sGScanAction));
         Log.d(TAG, "Setting Gscan alarm. Interval: " + mIntervalMillis);
         mGScanR.scheduleGscan();
         mBtnStart.setEnabled(false);
         mRadioGroup.setFocusable(false);
-        mTextView.setText(message);
+        mTextView.setText(message.toString());
+    }
+
+    /**
+     * Start a batched background scan of the first channel plan, the interval is used
+     * as the firmware scan period.
+     */
+    private void startBatchedGscan(String planSpecs, boolean includeDfs, int batchSize,
+                                   String reportEvents) {
+        stopGScan();
+        try {
+            ChannelPlan plan = ChannelPlan.parseList(planSpecs, includeDfs)[0];
+            mBatchedGScan = new WifiBatchedGScan(
+                    this, plan, mIntervalMillis, batchSize, reportEvents);
+            mBatchedGScan.start();
+            mTextView.setText("Started batched GScan for channel plan: " + plan.getName());
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, e.getMessage());
+            mTextView.setText(e.getMessage());
+            return;
+        }
+        mBtnStart.setEnabled(false);
+        mRadioGroup.setFocusable(false);
+    }
+
+    /**
+     * Read the GScan channel plan settings from SETPARAMS or AUTOPOWER extras.
+     * @param extras
+     */
+    private void setGScanPlansFromUser(Bundle extras) {
+        if (extras.containsKey(SETTING_GSCAN_PLANS_KEY)) {
+            mGScanPlans = extras.getString(SETTING_GSCAN_PLANS_KEY);
+        }
+        if (extras.containsKey(SETTING_GSCAN_INCLUDE_DFS_KEY)) {
+            mGScanIncludeDfs =
+                    Boolean.parseBoolean(extras.getString(SETTING_GSCAN_INCLUDE_DFS_KEY));
+        }
+        if (extras.containsKey(SETTING_GSCAN_SCANS_PER_PLAN_KEY)) {
+            String scansPerPlan = extras.getString(SETTING_GSCAN_SCANS_PER_PLAN_KEY);
+            if (scansPerPlan.length() != 0 && Integer.parseInt(scansPerPlan) > 0) {
+                mGScanScansPerPlan = Integer.parseInt(scansPerPlan);
+            }
+        }
+        if (extras.containsKey(SETTING_GSCAN_BATCH_SIZE_KEY)) {
+            String batchSize = extras.getString(SETTING_GSCAN_BATCH_SIZE_KEY);
+            if (batchSize.length() != 0 && Integer.parseInt(batchSize) > 0) {
+                mGScanBatchSize = Integer.parseInt(batchSize);
+            }
+        }
+        if (extras.containsKey(SETTING_GSCAN_REPORT_EVENTS_KEY)) {
+            mGScanReportEvents = extras.getString(SETTING_GSCAN_REPORT_EVENTS_KEY);
+        }
     }
 
     private void stopGScan() {
@@ -279,13 +608,34 @@ public class PMCMainActivity extends Activity {
             mRadioGroup.setFocusable(true);
             mTextView.setText("Stopped Gscan");
         }
+        if (mBatchedGScan != null) {
+            mBatchedGScan.stop();
+            Log.d(TAG, "Batched GScan stopped: " + mBatchedGScan.getStats());
+            mBatchedGScan = null;
+            mBtnStart.setEnabled(true);
+            mRadioGroup.setFocusable(true);
+            mTextView.setText("Stopped batched Gscan");
+        }
     }
 
     private void startIperfClient() {
         // Stop any ongoing iperf sessions before starting a new instance.
         stopIperfClient();
         mIperfClient =
-                new IperfClient(this, mServerIP, mServerPort, mIperfBandwidth, mIperfLogFile);
+                new IperfClient(this, mServerIP, mServerPort, mIperfBandwidth, mIperfLogFile,
+                        mIperfEngine);
+        mIperfClient.setJsonStream(mIperfJsonStream);
+        mIperfClient.setProtocol(mIperfProtocol);
+        mIperfClient.setDirection(mIperfDirection);
+        mIperfClient.setWindow(mIperfWindow);
+        mIperfClient.setLength(mIperfLength);
+        mIperfClient.setExitListener(new IperfClient.ExitListener() {
+            @Override
+            public void onExit(IperfClient client, String error) {
+                Log.i(TAG, "iperf client " + client.getMode() + " exited: " + error);
+                mIperfModeResults.put(client.getMode(), client.getStats());
+            }
+        });
         mIperfClient.startClient();
         mBtnStart.setEnabled(false);
         mRadioGroup.setFocusable(false);
@@ -295,6 +645,7 @@ public class PMCMainActivity extends Activity {
     private void stopIperfClient() {
         if (mIperfClient != null) {
             mIperfClient.stopClient();
+            mIperfModeResults.put(mIperfClient.getMode(), mIperfClient.getStats());
             mIperfClient = null;
             mBtnStart.setEnabled(true);
             mRadioGroup.setFocusable(true);
@@ -302,6 +653,67 @@ public class PMCMainActivity extends Activity {
         }
     }
 
+    private void startIperfSessions() {
+        stopIperfSessions();
+        if (TextUtils.isEmpty(mIperfSessions)) {
+            Log.e(TAG, "No iperf sessions set");
+            mTextView.setText("No iperf sessions set");
+            return;
+        }
+        try {
+            mIperfSupervisor = new IperfSupervisor(this, mIperfSessions, mServerIP,
+                    mIperfBandwidth, mIperfLogFile, mIperfEngine, mIperfJsonStream);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, e.getMessage());
+            mTextView.setText(e.getMessage());
+            return;
+        }
+        mIperfSupervisor.start();
+        mBtnStart.setEnabled(false);
+        mRadioGroup.setFocusable(false);
+        mTextView.setText("Started iperf sessions");
+    }
+
+    private void stopIperfSessions() {
+        if (mIperfSupervisor != null) {
+            mIperfSupervisor.stop();
+            mIperfSupervisor = null;
+            mBtnStart.setEnabled(true);
+            mRadioGroup.setFocusable(true);
+            mTextView.setText("Stopped iperf sessions");
+        }
+    }
+
+    private void startIperfRamp() {
+        stopIperfRamp();
+        if (TextUtils.isEmpty(mIperfRampSchedule)) {
+            Log.e(TAG, "No iperf ramp schedule set");
+            mTextView.setText("No iperf ramp schedule set");
+            return;
+        }
+        try {
+            mIperfRamp = new IperfRamp(this, mIperfRampSchedule, mServerIP, mServerPort,
+                    mIperfLogFile, mIperfEngine, mIperfJsonStream);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, e.getMessage());
+            mTextView.setText(e.getMessage());
+            return;
+        }
+        mIperfRamp.start();
+        mBtnStart.setEnabled(false);
+        mRadioGroup.setFocusable(false);
+    }
+
+    private void stopIperfRamp() {
+        if (mIperfRamp != null) {
+            mIperfRamp.stop();
+            mIperfRamp = null;
+            mBtnStart.setEnabled(true);
+            mRadioGroup.setFocusable(true);
+            mTextView.setText("Stopped iperf ramp");
+        }
+    }
+
     private void startUSBTethering() {
         OnStartTetheringCallback tetherCallback = new OnStartTetheringCallback();
         mConnManager.startTethering(ConnectivityManager.TETHERING_USB, true, tetherCallback);
@@ -408,6 +820,12 @@ public class PMCMainActivity extends Activity {
                             startConnectivityScan();
                         } else if (actionstring.equalsIgnoreCase("StopConnectivityScan")) {
                             stopConnectivityScan();
+                        } else if (actionstring.equalsIgnoreCase("GetConnScanStats")) {
+                            if (mConnSR != null) {
+                                this.setResultData(mConnSR.getDispatchStats());
+                            } else {
+                                this.setResultData("No connectivity scan running");
+                            }
                         } else if (actionstring.equalsIgnoreCase("Download1KB")) {
                             startDownloadFile("1kb.txt");
                         } else if (actionstring.equalsIgnoreCase("Download10KB")) {
@@ -416,27 +834,117 @@ public class PMCMainActivity extends Activity {
                             startDownloadFile("100kb.txt");
                         } else if (actionstring.equalsIgnoreCase("Download1MB")) {
                             startDownloadFile("1mb.txt");
+                        } else if (actionstring.equalsIgnoreCase("DownloadSweep")) {
+                            startDownloadSweep(mDownloadSizes, mDownloadCyclesPerSize);
+                        } else if (actionstring.equalsIgnoreCase("StartUpload")) {
+                            startUploadSweep(mUploadSizes, mDownloadCyclesPerSize);
+                        } else if (actionstring.equalsIgnoreCase("DownloadParallel")) {
+                            startDownloadFiles(mDownloadFiles.split(","), mDownloadStreams);
+                        } else if (actionstring.equalsIgnoreCase("GetDownloadStreamStats")) {
+                            if (mDR != null) {
+                                this.setResultData(mDR.getStreamStats());
+                            } else {
+                                this.setResultData("No download running");
+                            }
+                        } else if (actionstring.equalsIgnoreCase("GetTrafficStats")) {
+                            if (mDR != null) {
+                                this.setResultData(mDR.getTrafficStats());
+                            } else {
+                                this.setResultData("No download running");
+                            }
+                        } else if (actionstring.equalsIgnoreCase("GetDownloadIntegrity")) {
+                            if (mDR != null) {
+                                this.setResultData(mDR.getIntegrityStats());
+                            } else {
+                                this.setResultData("No download running");
+                            }
                         } else if (actionstring.equalsIgnoreCase("StopDownload")) {
                             stopDownloadFile();
                         } else if (actionstring.equalsIgnoreCase("StartGScanChannel")) {
-                            Integer[] channelList = {2412, 2437, 2462};
-                            startGscan(WifiScanner.WIFI_BAND_UNSPECIFIED, channelList);
+                            startGscan(ChannelPlan.PRESET_SOCIAL, false, 1);
                         } else if (actionstring.equalsIgnoreCase("StartGScanBand")) {
-                            startGscan(WifiScanner.WIFI_BAND_BOTH, null);
+                            startGscan(ChannelPlan.PRESET_BOTH, false, 1);
+                        } else if (actionstring.equalsIgnoreCase("StartGScanPlans")) {
+                            setGScanPlansFromUser(extras);
+                            startGscan(mGScanPlans, mGScanIncludeDfs, mGScanScansPerPlan);
+                        } else if (actionstring.equalsIgnoreCase("StartGScanBatch")) {
+                            setGScanPlansFromUser(extras);
+                            startBatchedGscan(mGScanPlans, mGScanIncludeDfs, mGScanBatchSize,
+                                    mGScanReportEvents);
+                        } else if (actionstring.equalsIgnoreCase("GetGScanBatchStats")) {
+                            if (mBatchedGScan != null) {
+                                this.setResultData(mBatchedGScan.getStats());
+                            } else {
+                                this.setResultData("No batched GScan running");
+                            }
                         } else if (actionstring.equalsIgnoreCase("StopGScan")) {
                             stopGScan();
                         } else if (actionstring.equalsIgnoreCase("GetDownloadRate")) {
                             if (mDR != null) {
-                                String dataRateString = "Data Rate: "
-                                        + Integer.toString(mDR.getDownloadRate()) + " bytes/sec";
-                                this.setResultData(dataRateString);
+                                this.setResultData(mDR.getDownloadRateJson());
+                            } else {
+                                this.setResultData("No download running");
+                            }
+                        } else if (actionstring.equalsIgnoreCase("GetDownloadLatency")) {
+                            this.setResultData(getDownloadLatencyStats());
+                        } else if (actionstring.equalsIgnoreCase("GetDownloadConnStats")) {
+                            if (mDR != null) {
+                                this.setResultData(mDR.getConnectionStats());
                             } else {
                                 this.setResultData("No download running");
                             }
+                        } else if (actionstring.equalsIgnoreCase("StartPayloadServer")) {
+                            this.setResultData(startPayloadServer(false));
+                        } else if (actionstring.equalsIgnoreCase("StartPayloadEchoServer")) {
+                            this.setResultData(startPayloadServer(true));
+                        } else if (actionstring.equalsIgnoreCase("GetPayloadServerStats")) {
+                            if (mPayloadServer != null) {
+                                this.setResultData(mPayloadServer.getStats());
+                            } else {
+                                this.setResultData("No payload server running");
+                            }
+                        } else if (actionstring.equalsIgnoreCase("StopPayloadServer")) {
+                            stopPayloadServer();
+                        } else if (actionstring.equalsIgnoreCase("GetScanLatency")) {
+                            this.setResultData(getScanLatencyStats());
+                        } else if (actionstring.equalsIgnoreCase("GetScanResults")) {
+                            this.setResultData(mScanResultStore.toSummaryString());
+                        } else if (actionstring.equalsIgnoreCase("DumpScanResults")) {
+                            this.setResultData(dumpScanResults());
+                        } else if (actionstring.equalsIgnoreCase("GetLogStats")) {
+                            this.setResultData(PMCStatusLogger.getStats());
                         } else if (actionstring.equalsIgnoreCase("StartIperfClient")) {
                             startIperfClient();
                         } else if (actionstring.equalsIgnoreCase("StopIperfClient")) {
                             stopIperfClient();
+                        } else if (actionstring.equalsIgnoreCase("GetIperfStats")) {
+                            if (mIperfClient != null) {
+                                this.setResultData(mIperfClient.getStats());
+                            } else {
+                                this.setResultData("No iperf client running");
+                            }
+                        } else if (actionstring.equalsIgnoreCase("GetIperfModeResults")) {
+                            this.setResultData(getIperfModeResults());
+                        } else if (actionstring.equalsIgnoreCase("StartIperfSessions")) {
+                            startIperfSessions();
+                        } else if (actionstring.equalsIgnoreCase("StopIperfSessions")) {
+                            stopIperfSessions();
+                        } else if (actionstring.equalsIgnoreCase("GetIperfSessionStats")) {
+                            if (mIperfSupervisor != null) {
+                                this.setResultData(mIperfSupervisor.getStats());
+                            } else {
+                                this.setResultData("No iperf sessions running");
+                            }
+                        } else if (actionstring.equalsIgnoreCase("StartIperfRamp")) {
+                            startIperfRamp();
+                        } else if (actionstring.equalsIgnoreCase("StopIperfRamp")) {
+                            stopIperfRamp();
+                        } else if (actionstring.equalsIgnoreCase("GetIperfRampStats")) {
+                            if (mIperfRamp != null) {
+                                this.setResultData(mIperfRamp.getStats());
+                            } else {
+                                this.setResultData("No iperf ramp started");
+                            }
                         } else if (actionstring.equalsIgnoreCase("StartUSBTethering")) {
                             startUSBTethering();
                         } else if (actionstring.equalsIgnoreCase("StopUSBTethering")) {
@@ -467,6 +975,74 @@ public class PMCMainActivity extends Activity {
                     if (extras.containsKey(SETTING_IPERF_LOGFILE_KEY)) {
                         mIperfLogFile = extras.getString(SETTING_IPERF_LOGFILE_KEY);
                     }
+                    if (extras.containsKey(SETTING_IPERF_ENGINE_KEY)) {
+                        mIperfEngine = extras.getString(SETTING_IPERF_ENGINE_KEY);
+                    }
+                    if (extras.containsKey(SETTING_IPERF_JSON_STREAM_KEY)) {
+                        mIperfJsonStream = Boolean.parseBoolean(
+                                extras.getString(SETTING_IPERF_JSON_STREAM_KEY));
+                    }
+                    if (extras.containsKey(SETTING_IPERF_SESSIONS_KEY)) {
+                        mIperfSessions = extras.getString(SETTING_IPERF_SESSIONS_KEY);
+                    }
+                    if (extras.containsKey(SETTING_IPERF_RAMP_KEY)) {
+                        mIperfRampSchedule = extras.getString(SETTING_IPERF_RAMP_KEY);
+                    }
+                    if (extras.containsKey(SETTING_IPERF_PROTOCOL_KEY)) {
+                        mIperfProtocol = extras.getString(SETTING_IPERF_PROTOCOL_KEY);
+                    }
+                    if (extras.containsKey(SETTING_IPERF_DIRECTION_KEY)) {
+                        mIperfDirection = extras.getString(SETTING_IPERF_DIRECTION_KEY);
+                    }
+                    if (extras.containsKey(SETTING_IPERF_WINDOW_KEY)) {
+                        mIperfWindow = extras.getString(SETTING_IPERF_WINDOW_KEY);
+                    }
+                    if (extras.containsKey(SETTING_IPERF_LENGTH_KEY)) {
+                        mIperfLength = extras.getString(SETTING_IPERF_LENGTH_KEY);
+                    }
+                    if (extras.containsKey(SETTING_DOWNLOAD_STREAMS_KEY)) {
+                        String streams = extras.getString(SETTING_DOWNLOAD_STREAMS_KEY);
+                        if (streams.length() != 0 && Integer.parseInt(streams) > 0) {
+                            mDownloadStreams = Integer.parseInt(streams);
+                        }
+                    }
+                    if (extras.containsKey(SETTING_DOWNLOAD_FILES_KEY)) {
+                        mDownloadFiles = extras.getString(SETTING_DOWNLOAD_FILES_KEY);
+                    }
+                    if (extras.containsKey(SETTING_DOWNLOAD_SIZES_KEY)) {
+                        mDownloadSizes = extras.getString(SETTING_DOWNLOAD_SIZES_KEY);
+                    }
+                    if (extras.containsKey(SETTING_UPLOAD_SIZES_KEY)) {
+                        mUploadSizes = extras.getString(SETTING_UPLOAD_SIZES_KEY);
+                    }
+                    if (extras.containsKey(SETTING_DOWNLOAD_CYCLES_PER_SIZE_KEY)) {
+                        String cycles = extras.getString(SETTING_DOWNLOAD_CYCLES_PER_SIZE_KEY);
+                        if (cycles.length() != 0 && Integer.parseInt(cycles) > 0) {
+                            mDownloadCyclesPerSize = Integer.parseInt(cycles);
+                        }
+                    }
+                    if (extras.containsKey(SETTING_DOWNLOAD_KEEP_ALIVE_KEY)) {
+                        mDownloadKeepAlive = Boolean.parseBoolean(
+                                extras.getString(SETTING_DOWNLOAD_KEEP_ALIVE_KEY));
+                    }
+                    if (extras.containsKey(SETTING_TRAFFIC_MODEL_KEY)) {
+                        mTrafficModel = extras.getString(SETTING_TRAFFIC_MODEL_KEY);
+                    }
+                    if (extras.containsKey(SETTING_TRAFFIC_SEED_KEY)) {
+                        String seed = extras.getString(SETTING_TRAFFIC_SEED_KEY);
+                        if (seed.length() != 0) mTrafficSeed = Long.parseLong(seed);
+                    }
+                    if (extras.containsKey(SETTING_DOWNLOAD_VERIFY_KEY)) {
+                        mDownloadVerify = Boolean.parseBoolean(
+                                extras.getString(SETTING_DOWNLOAD_VERIFY_KEY));
+                    }
+                    if (extras.containsKey(SETTING_DOWNLOAD_IDLE_TIMEOUT_KEY)) {
+                        String idleTimeout = extras.getString(SETTING_DOWNLOAD_IDLE_TIMEOUT_KEY);
+                        if (idleTimeout.length() != 0 && Integer.parseInt(idleTimeout) >= 0) {
+                            mDownloadIdleTimeoutMillis = Integer.parseInt(idleTimeout) * 1000L;
+                        }
+                    }
+                    setGScanPlansFromUser(extras);
                 }
             }
         }
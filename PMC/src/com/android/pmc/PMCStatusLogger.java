@@ -16,45 +16,195 @@
 
 package com.android.pmc;
 
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * Logging class to log status so PMC can communicate the status back to client
+ *
+ * The log file is opened once per test as an append-only channel. Status lines are
+ * buffered and group committed, either when the pending bytes exceed the commit size
+ * or when the oldest pending line is older than the commit interval, so a power run
+ * only wakes up storage a handful of times and earlier statuses are preserved.
+ *
+ * Each subsystem gets its own logger from open(), so A2DP and BLE scan cases can run
+ * in the same process. Callers only queue the line; every file operation runs on a
+ * single writer HandlerThread shared by all loggers, so receivers and Bluetooth
+ * callbacks never wait for the sdcard. The queue is bounded and the OverflowPolicy
+ * decides what happens to lines logged while it is full.
+ *
+ * Status lines go to the log file. The alarm times go to a binary timeline next to
+ * it, <log file>.bin. flash() writes them as the legacy {"AlarmTimes":[...]} JSON at
+ * the log file's path, where host side parsers read it, after moving the status
+ * history to <log file>.status, which receives the status lines from then on.
  */
 public class PMCStatusLogger {
-    private File mFile;
-    public static String TAG;
+    public static final long DEFAULT_COMMIT_INTERVAL_MS = 1000;
+    public static final int DEFAULT_COMMIT_SIZE_BYTES = 4 * 1024;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final String TIMELINE_SUFFIX = ".bin";
+    public static final String STATUS_SUFFIX = ".status";
     public static String LOG_DIR = "/mnt/sdcard/Download";
-    public static JSONObject mJObject;
-    public static JSONArray mJArray;
+    private static final String WRITER_THREAD_NAME = "PMCLogWriter";
+    private static final ConcurrentHashMap<String, PMCStatusLogger> sLoggers =
+            new ConcurrentHashMap<String, PMCStatusLogger>();
+    private static HandlerThread sWriterThread;
 
     /**
-     * Construtor - check if the file exist. If it is delete and create a new.
+     * What to do with a line logged while the queue is full
+     */
+    public enum OverflowPolicy {
+        /** Discard the line and count it as dropped */
+        DROP,
+        /** Wait for the writer thread to make room */
+        BLOCK,
+        /** Queue the line anyway and count it as an overflow */
+        COUNT
+    }
+
+    private final String mTag;
+    private final String mFileName;
+    private File mFile;
+    // The file status lines are appended to, the log file until flash() moves them
+    private File mStatusFile;
+    private FileChannel mChannel;
+    private AlarmTimeline mTimeline;
+    private final ConcurrentLinkedQueue<byte[]> mQueue = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mQueuedBytes = new AtomicInteger();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mOverflowCount = new AtomicLong();
+    private final AtomicBoolean mCommitScheduled = new AtomicBoolean();
+    private final AtomicBoolean mCommitNow = new AtomicBoolean();
+    // Only used to park callers of a full queue with the BLOCK policy
+    private final Object mSpaceLock = new Object();
+    private final ByteBuffer mPending;
+    private final int mCommitSizeBytes;
+    private final long mCommitIntervalMillis;
+    private final int mQueueCapacity;
+    private final OverflowPolicy mOverflowPolicy;
+    private final Handler mHandler;
+
+    private final Runnable mCommitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mCommitNow.set(false);
+            mCommitScheduled.set(false);
+            commit();
+        }
+    };
+
+    /**
+     * Open a new logger for a subsystem, closing the previous logger of that subsystem.
+     * Loggers of other subsystems are not affected.
      *
-     * @param message - message to be logged
+     * @param fileName - name of the log file under LOG_DIR
+     * @param tag - subsystem tag, also used for logcat messages
      */
-    public PMCStatusLogger(String fileName, String tag) {
-        TAG = tag;
+    public static PMCStatusLogger open(String fileName, String tag) {
+        return open(fileName, tag, DEFAULT_COMMIT_INTERVAL_MS, DEFAULT_COMMIT_SIZE_BYTES,
+                DEFAULT_QUEUE_CAPACITY, OverflowPolicy.COUNT);
+    }
 
-        try {
-            mFile = new File(LOG_DIR + "/" + fileName);
-            if (mFile.exists()) mFile.delete();
-            mFile.createNewFile();
-        } catch (IOException e) {
-            Log.e(TAG, "Exception creating log file: " + fileName + " " + e);
+    /**
+     * Open a new logger for a subsystem with its own commit and queue settings,
+     * closing the previous logger of that subsystem.
+     *
+     * @param fileName - name of the log file under LOG_DIR
+     * @param tag - subsystem tag, also used for logcat messages
+     * @param commitIntervalMillis - max time a status line may stay buffered
+     * @param commitSizeBytes - pending bytes that trigger an immediate commit
+     * @param queueCapacity - max lines waiting for the writer thread
+     * @param overflowPolicy - what to do with lines logged while the queue is full
+     */
+    public static PMCStatusLogger open(String fileName, String tag, long commitIntervalMillis,
+                                       int commitSizeBytes, int queueCapacity,
+                                       OverflowPolicy overflowPolicy) {
+        PMCStatusLogger previous = sLoggers.get(tag);
+        // The previous close is queued on the writer thread before the new file is opened
+        if (previous != null) previous.close();
+        PMCStatusLogger logger = new PMCStatusLogger(fileName, tag, commitIntervalMillis,
+                commitSizeBytes, queueCapacity, overflowPolicy);
+        sLoggers.put(tag, logger);
+        return logger;
+    }
+
+    /**
+     * Returns the current logger of a subsystem, or null if none was opened
+     *
+     * @param tag - subsystem tag
+     */
+    public static PMCStatusLogger get(String tag) {
+        return sLoggers.get(tag);
+    }
+
+    /**
+     * Returns queue depth, dropped and overflowed lines of every open logger
+     */
+    public static String getStats() {
+        StringBuilder sb = new StringBuilder();
+        for (PMCStatusLogger logger : sLoggers.values()) {
+            if (sb.length() > 0) sb.append("; ");
+            sb.append(logger.mTag).append(": depth=").append(logger.getQueueDepth())
+                    .append(" dropped=").append(logger.getDroppedCount())
+                    .append(" overflow=").append(logger.getOverflowCount());
+        }
+        return sb.length() > 0 ? sb.toString() : "No logger open";
+    }
+
+    private static synchronized Looper getWriterLooper() {
+        if (sWriterThread == null) {
+            sWriterThread = new HandlerThread(WRITER_THREAD_NAME,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            sWriterThread.start();
         }
-        mJObject = new JSONObject();
-        mJArray = new JSONArray();
+        return sWriterThread.getLooper();
+    }
+
+    /**
+     * Construtor - check if the file exist. If it is delete and create a new.
+     * The file is replaced on the writer thread, after everything queued before.
+     *
+     * @param fileName - name of the log file under LOG_DIR
+     * @param tag - tag used for logcat messages
+     * @param commitIntervalMillis - max time a status line may stay buffered
+     * @param commitSizeBytes - pending bytes that trigger an immediate commit
+     * @param queueCapacity - max lines waiting for the writer thread
+     * @param overflowPolicy - what to do with lines logged while the queue is full
+     */
+    private PMCStatusLogger(String fileName, String tag, long commitIntervalMillis,
+                            int commitSizeBytes, int queueCapacity,
+                            OverflowPolicy overflowPolicy) {
+        mTag = tag;
+        mFileName = fileName;
+        mCommitIntervalMillis = commitIntervalMillis;
+        mCommitSizeBytes = commitSizeBytes;
+        mQueueCapacity = queueCapacity;
+        mOverflowPolicy = overflowPolicy;
+        mPending = ByteBuffer.allocate(commitSizeBytes);
+        mHandler = new Handler(getWriterLooper());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                openFile();
+            }
+        });
     }
 
     /**
@@ -63,54 +213,283 @@ public class PMCStatusLogger {
      * @param message - message to be logged
      */
     public void logStatus(String message) {
-        try {
-            FileWriter fos = new FileWriter(mFile);
-            BufferedWriter bw = new BufferedWriter(fos);
-            bw.write(message);
-            bw.newLine();
-            bw.close();
-        } catch (IOException e) {
-            Log.e(TAG, "Exception writing log: " + message + " " + e);
-        }
+        append(message);
     }
 
     /**
-     * Function to add alarm times into JSONArray object
+     * Function to add alarm times into the timeline. The binary timeline file is
+     * created next to the log file on the first call.
      *
      * @param startTime - Start time for the cycle
      * @param endTime - End time for the cycle
      */
-    public void logAlarmTimes(double startTime, double endTime) {
-        JSONObject obj = new JSONObject();
-        try {
-            obj.put("StartTime", startTime);
-            obj.put("EndTime", endTime);
-            mJArray.put(obj);
-        } catch (JSONException e) {
-            Log.e(TAG, "Exception to put Alarm Times into JSONArray: " + e);
+    public void logAlarmTimes(final double startTime, final double endTime) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mFile == null) return;
+                try {
+                    if (mTimeline == null) {
+                        mTimeline = new AlarmTimeline(
+                                new File(mFile.getPath() + TIMELINE_SUFFIX));
+                    }
+                    mTimeline.add(startTime, endTime);
+                } catch (IOException e) {
+                    Log.e(mTag, "Exception to write Alarm Times into timeline: " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Function to save the alarm times as legacy JSON into the log file. The pending
+     * status lines are committed first and the status history moves to <log file>.status
+     */
+    public void flash() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                String json = mTimeline != null ? mTimeline.toJson() : "{\"AlarmTimes\":[]}";
+                Log.v(mTag, "JSON: " + json);
+                commit();
+                moveStatusHistory();
+                writeJson(json);
+            }
+        });
+    }
+
+    /**
+     * Function to commit any pending lines and close the log file. Called once the
+     * test of the subsystem is over; the logger must not be used afterwards.
+     */
+    public void close() {
+        sLoggers.remove(mTag, this);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.removeCallbacks(mCommitRunnable);
+                commit();
+                closeFile();
+                if (mDroppedCount.get() > 0 || mOverflowCount.get() > 0) {
+                    Log.w(mTag, "Log queue dropped " + mDroppedCount.get()
+                            + " lines, overflowed " + mOverflowCount.get() + " times");
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the number of lines waiting for the writer thread
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * Returns the number of lines discarded because the queue was full
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Returns the number of lines queued beyond the queue capacity
+     */
+    public long getOverflowCount() {
+        return mOverflowCount.get();
+    }
+
+    /**
+     * Queue one line and let the writer thread commit it, right away if the queue
+     * reached the commit size, otherwise after the commit interval.
+     *
+     * @param message - line to be appended
+     */
+    private void append(String message) {
+        if (mQueueDepth.incrementAndGet() > mQueueCapacity && !handleOverflow()) {
+            return;
+        }
+        byte[] line = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        mQueue.offer(line);
+        if (mQueuedBytes.addAndGet(line.length) >= mCommitSizeBytes) {
+            if (mCommitNow.compareAndSet(false, true)) {
+                mHandler.post(mCommitRunnable);
+            }
+        } else if (mCommitScheduled.compareAndSet(false, true)) {
+            mHandler.postDelayed(mCommitRunnable, mCommitIntervalMillis);
         }
     }
 
     /**
-     * Function to save Json object into log file
+     * Apply the overflow policy to a line which found the queue full. The line's slot
+     * is already counted in mQueueDepth.
      *
+     * @return true if the line should still be queued
      */
-    public void flash() {
+    private boolean handleOverflow() {
+        OverflowPolicy policy = mOverflowPolicy;
+        if (policy == OverflowPolicy.BLOCK && Looper.myLooper() == mHandler.getLooper()) {
+            // The writer thread can't wait for itself
+            policy = OverflowPolicy.COUNT;
+        }
+        switch (policy) {
+            case DROP:
+                mQueueDepth.decrementAndGet();
+                mDroppedCount.incrementAndGet();
+                return false;
+            case BLOCK:
+                mQueueDepth.decrementAndGet();
+                if (mCommitNow.compareAndSet(false, true)) {
+                    mHandler.post(mCommitRunnable);
+                }
+                synchronized (mSpaceLock) {
+                    while (true) {
+                        // Claim the free slot atomically, other producers may race for it
+                        int depth = mQueueDepth.get();
+                        if (depth < mQueueCapacity) {
+                            if (mQueueDepth.compareAndSet(depth, depth + 1)) return true;
+                            continue;
+                        }
+                        try {
+                            mSpaceLock.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            mDroppedCount.incrementAndGet();
+                            return false;
+                        }
+                    }
+                }
+            case COUNT:
+            default:
+                mOverflowCount.incrementAndGet();
+                return true;
+        }
+    }
+
+    private void openFile() {
         try {
-            mJObject.put("AlarmTimes", mJArray);
-
-            FileWriter fos = new FileWriter(mFile);
-            BufferedWriter bw = new BufferedWriter(fos);
-            Log.v(TAG, "JSON: " + mJObject.toString());
-            bw.write(mJObject.toString());
-            bw.newLine();
-            bw.close();
-        } catch (JSONException e) {
-            Log.e(TAG, "Exception to put JSONArray into main JSON object: " + e);
+            mFile = new File(LOG_DIR + "/" + mFileName);
+            if (mFile.exists()) mFile.delete();
+            // A status history left by an earlier run would pass for this one's
+            new File(mFile.getPath() + STATUS_SUFFIX).delete();
+            mFile.createNewFile();
+            mStatusFile = mFile;
+            mChannel = new FileOutputStream(mFile, true).getChannel();
         } catch (IOException e) {
-            Log.e(TAG, "Exception writing JSON to log file: " + e);
+            Log.e(mTag, "Exception creating log file: " + mFileName + " " + e);
         }
     }
 
-}
+    /**
+     * Rename the log file to <log file>.status, once, and keep appending to it there,
+     * so the JSON can take the log file's path. Only runs on the writer thread.
+     */
+    private void moveStatusHistory() {
+        if (mFile == null || mStatusFile != mFile) return;
+        File status = new File(mFile.getPath() + STATUS_SUFFIX);
+        closeChannel();
+        if (!mFile.renameTo(status)) {
+            Log.e(mTag, "Exception moving status history to: " + status);
+        }
+        mStatusFile = status;
+        try {
+            mChannel = new FileOutputStream(status, true).getChannel();
+        } catch (IOException e) {
+            Log.e(mTag, "Exception opening status file: " + status + " " + e);
+        }
+    }
+
+    private void writeJson(String json) {
+        if (mFile == null) return;
+        File file = mFile;
+        try (FileChannel channel = new FileOutputStream(file, false).getChannel()) {
+            ByteBuffer buffer = ByteBuffer.wrap((json + "\n").getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            Log.e(mTag, "Exception writing alarm times JSON: " + file + " " + e);
+        }
+    }
+
+    private void closeFile() {
+        if (mTimeline != null) {
+            try {
+                mTimeline.close();
+            } catch (IOException e) {
+                Log.e(mTag, "Exception closing timeline file: " + e);
+            }
+        }
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                Log.e(mTag, "Exception closing log file: " + e);
+            }
+            mChannel = null;
+        }
+    }
+
+    /**
+     * Drain the queue and write the lines to the log file in as few batches as
+     * possible. Only runs on the writer thread.
+     */
+    private void commit() {
+        boolean written = false;
+        byte[] line;
+        while ((line = mQueue.poll()) != null) {
+            written = true;
+            mQueuedBytes.addAndGet(-line.length);
+            mQueueDepth.decrementAndGet();
+            if (line.length > mPending.remaining()) {
+                writePending();
+            }
+            if (line.length > mPending.capacity()) {
+                // Larger than the whole buffer, write it straight through
+                write(ByteBuffer.wrap(line));
+            } else {
+                mPending.put(line);
+            }
+        }
+        if (!written) return;
+        if (mOverflowPolicy == OverflowPolicy.BLOCK) {
+            synchronized (mSpaceLock) {
+                mSpaceLock.notifyAll();
+            }
+        }
+        writePending();
+        if (mChannel != null) {
+            try {
+                mChannel.force(false);
+            } catch (IOException e) {
+                Log.e(mTag, "Exception syncing log: " + e);
+            }
+        }
+    }
+
+    private void writePending() {
+        if (mPending.position() == 0) return;
+        mPending.flip();
+        write(mPending);
+        mPending.clear();
+    }
 
+    private void write(ByteBuffer buffer) {
+        if (mChannel == null) {
+            Log.e(mTag, "Log file is not open, dropping " + buffer.remaining() + " bytes");
+            return;
+        }
+        try {
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        } catch (IOException e) {
+            Log.e(mTag, "Exception writing log: " + e);
+        }
+    }
+}
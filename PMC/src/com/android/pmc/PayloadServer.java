@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Self contained test server, so the network engines can be benchmarked on loopback
+ * or on a build machine without any external server.
+ *
+ * One thread runs a Selector over an HTTP/1.1 listener and a UDP socket on the same
+ * port number:
+ *
+ *   GET /bytes/<n>      n generated bytes
+ *   GET /1kb.txt ...    the legacy 1kb.txt, 10kb.txt, 100kb.txt and 1mb.txt sizes
+ *   GET /generate_204   204 No Content, like the connectivity check
+ *   POST /upload[/<n>]  request body of Content-Length bytes discarded
+ *   UDP                 datagrams are counted and dropped, or echoed back
+ *
+ * Connections are kept alive unless the client asks otherwise, and pipelined
+ * requests are answered in order. Bodies are written from one shared read only
+ * direct buffer; generated bodies carry their CRC32C in a
+ * NioDownloadEngine.CHECKSUM_HEADER. As a body is the same chunk over and over, its
+ * CRC is combined from the CRC of the chunk in O(log size), so the header of a huge
+ * body does not stall the selector thread. Runs on any JVM, with android.jar on the
+ * classpath for its error log:
+ *
+ *   java -cp <classes> com.android.pmc.PayloadServer [port] [sink|echo]
+ */
+public class PayloadServer {
+    public static final int DEFAULT_PORT = 8080;
+    public static final String BYTES_PATH = "/bytes/";
+    public static final String GENERATE_204_PATH = "/generate_204";
+    public static final String UPLOAD_PATH = "/upload";
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_REQUEST_SIZE = 8 * 1024;
+    private static final int MAX_DATAGRAM_SIZE = 64 * 1024;
+    private static final int MAX_CACHED_CHECKSUMS = 64;
+    // Content does not matter, the same chunk is written over and over
+    private static final ByteBuffer CHUNK;
+
+    static {
+        ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        while (chunk.hasRemaining()) chunk.put((byte) 'x');
+        chunk.flip();
+        CHUNK = chunk.asReadOnlyBuffer();
+    }
+
+    private final Selector mSelector;
+    private final ServerSocketChannel mServerChannel;
+    private final DatagramChannel mUdpChannel;
+    private final boolean mUdpEcho;
+    private final ByteBuffer mDatagram = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private final ByteBuffer mDiscard = ByteBuffer.allocateDirect(CHUNK_SIZE);
+    // CRC32C of the payloads of the sizes served last, a sweep only uses a few
+    private final Map<Long, Long> mChecksums =
+            new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                    return size() > MAX_CACHED_CHECKSUMS;
+                }
+            };
+    private long mChunkChecksum = -1;
+    private volatile boolean mClosed;
+
+    private final AtomicLong mConnectionCount = new AtomicLong();
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mBytesServed = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mDatagramCount = new AtomicLong();
+    private final AtomicLong mDatagramBytes = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param port - TCP and UDP port to listen on, 0 for any free port
+     * @param udpEcho - echo datagrams back to their sender instead of dropping them
+     */
+    public PayloadServer(int port, boolean udpEcho) throws IOException {
+        mUdpEcho = udpEcho;
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(new InetSocketAddress(port));
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        mUdpChannel = DatagramChannel.open();
+        mUdpChannel.socket().bind(new InetSocketAddress(getPort()));
+        mUdpChannel.configureBlocking(false);
+        mUdpChannel.register(mSelector, SelectionKey.OP_READ);
+    }
+
+    public int getPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Serve on a new daemon thread.
+     */
+    public void start() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "PayloadServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Serve on the calling thread until close is called.
+     */
+    public void serve() {
+        try {
+            while (!mClosed) {
+                mSelector.select();
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        handle(key);
+                    } catch (IOException e) {
+                        // The client went away, drop its connection only
+                        closeConnection(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (!mClosed) Log.e(PMCMainActivity.TAG, "PayloadServer failed: " + e);
+        } finally {
+            for (SelectionKey key : mSelector.keys()) {
+                closeConnection(key);
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        }
+    }
+
+    public void close() {
+        mClosed = true;
+        mSelector.wakeup();
+    }
+
+    /**
+     * Returns what was served so far
+     */
+    public String getStats() {
+        return "connections=" + mConnectionCount.get() + " requests=" + mRequestCount.get()
+                + " bytesServed=" + mBytesServed.get() + " bytesReceived="
+                + mBytesReceived.get() + " datagrams=" + mDatagramCount.get()
+                + " datagramBytes=" + mDatagramBytes.get();
+    }
+
+    /**
+     * Returns the payload size served for a path, or -1 if there is none.
+     *
+     * @param path - request path, e.g. /bytes/4096 or /1mb.txt
+     */
+    public static long getPayloadSize(String path) {
+        if (path.startsWith(BYTES_PATH)) {
+            try {
+                long size = Long.parseLong(path.substring(BYTES_PATH.length()));
+                return size < 0 ? -1 : size;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        switch (path) {
+            case "/1kb.txt":
+                return 1024;
+            case "/10kb.txt":
+                return 10 * 1024;
+            case "/100kb.txt":
+                return 100 * 1024;
+            case "/1mb.txt":
+                return 1024 * 1024;
+            default:
+                return -1;
+        }
+    }
+
+    private void handle(SelectionKey key) throws IOException {
+        if (!key.isValid()) return;
+        if (key.channel() == mUdpChannel) {
+            receiveDatagrams();
+        } else if (key.isAcceptable()) {
+            SocketChannel channel = mServerChannel.accept();
+            if (channel == null) return;
+            channel.configureBlocking(false);
+            // Header and small bodies go out in one segment, not delayed by Nagle
+            channel.socket().setTcpNoDelay(true);
+            channel.register(mSelector, SelectionKey.OP_READ, new Connection());
+            mConnectionCount.incrementAndGet();
+        } else {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection connection = (Connection) key.attachment();
+            if (key.isReadable()) {
+                if (channel.read(connection.request) < 0) {
+                    closeConnection(key);
+                    return;
+                }
+            }
+            if (key.isWritable() || connection.header == null || connection.uploadLeft > 0) {
+                serveRequests(key, channel, connection);
+            }
+        }
+    }
+
+    /**
+     * Answer the buffered requests until the socket buffer is full or no complete
+     * request is left.
+     */
+    private void serveRequests(SelectionKey key, SocketChannel channel, Connection connection)
+            throws IOException {
+        while (true) {
+            if (connection.header == null && !parseRequest(connection)) {
+                if (!connection.request.hasRemaining()) {
+                    throw new IOException("Request too long");
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if (connection.uploadLeft > 0 && !discardUpload(channel, connection)) {
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if (connection.header.hasRemaining()) channel.write(connection.header);
+            while (!connection.header.hasRemaining() && connection.bodyLeft > 0) {
+                ByteBuffer chunk = CHUNK.duplicate();
+                chunk.limit((int) Math.min(connection.bodyLeft, CHUNK_SIZE));
+                int written = channel.write(chunk);
+                if (written == 0) break;
+                connection.bodyLeft -= written;
+                mBytesServed.addAndGet(written);
+            }
+            if (connection.header.hasRemaining() || connection.bodyLeft > 0) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            connection.header = null;
+            if (!connection.keepAlive) {
+                closeConnection(key);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drop the upload body, buffered bytes first and then straight from the socket.
+     * @return true once the whole body is consumed
+     */
+    private boolean discardUpload(SocketChannel channel, Connection connection)
+            throws IOException {
+        ByteBuffer request = connection.request;
+        request.flip();
+        int buffered = (int) Math.min(request.remaining(), connection.uploadLeft);
+        request.position(request.position() + buffered);
+        request.compact();
+        connection.uploadLeft -= buffered;
+        mBytesReceived.addAndGet(buffered);
+        while (connection.uploadLeft > 0) {
+            mDiscard.clear();
+            // Never read past the body, a pipelined request may follow
+            mDiscard.limit((int) Math.min(connection.uploadLeft, CHUNK_SIZE));
+            int read = channel.read(mDiscard);
+            if (read < 0) throw new IOException("Connection closed in upload");
+            if (read == 0) return false;
+            connection.uploadLeft -= read;
+            mBytesReceived.addAndGet(read);
+        }
+        return true;
+    }
+
+    /**
+     * Parse one request out of the buffered bytes and prepare its response.
+     * @return false if no complete request is buffered yet
+     */
+    private boolean parseRequest(Connection connection) {
+        ByteBuffer request = connection.request;
+        int end = -1;
+        for (int i = 3; i < request.position(); i++) {
+            if (request.get(i) == '\n' && request.get(i - 1) == '\r'
+                    && request.get(i - 2) == '\n' && request.get(i - 3) == '\r') {
+                end = i + 1;
+                break;
+            }
+        }
+        if (end == -1) return false;
+        byte[] bytes = new byte[end];
+        request.flip();
+        request.get(bytes);
+        // Keep any pipelined request for the next round
+        request.compact();
+        String[] lines = new String(bytes, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] parts = lines[0].split(" ");
+        connection.keepAlive = lines[0].endsWith("HTTP/1.1");
+        long contentLength = 0;
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i].toLowerCase(Locale.ROOT);
+            if (line.startsWith("connection:")) {
+                connection.keepAlive = !line.contains("close");
+            } else if (line.startsWith("content-length:")) {
+                try {
+                    contentLength = Long.parseLong(line.substring(15).trim());
+                } catch (NumberFormatException e) {
+                    // Without a usable length the body cannot be skipped
+                    connection.keepAlive = false;
+                }
+            }
+        }
+        // Any request body is consumed before the response, whatever the path
+        connection.uploadLeft = Math.max(contentLength, 0);
+        mRequestCount.incrementAndGet();
+
+        String path = parts.length >= 2 ? parts[1] : "";
+        boolean get = parts[0].equals("GET");
+        String status;
+        long size = 0;
+        if (get && path.equals(GENERATE_204_PATH)) {
+            status = "204 No Content";
+        } else if (parts[0].equals("POST")
+                && (path.equals(UPLOAD_PATH) || path.startsWith(UPLOAD_PATH + "/"))) {
+            status = "200 OK";
+        } else if (get && (size = getPayloadSize(path)) >= 0) {
+            status = "200 OK";
+        } else {
+            status = "404 Not Found";
+            size = 0;
+        }
+        connection.header = ByteBuffer.wrap(("HTTP/1.1 " + status + "\r\nContent-Length: "
+                + size + (size > 0 ? String.format("\r\n%s: %08x",
+                        NioDownloadEngine.CHECKSUM_HEADER, getChecksum(size)) : "")
+                + "\r\nContent-Type: application/octet-stream\r\nConnection: "
+                + (connection.keepAlive ? "keep-alive" : "close") + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        connection.bodyLeft = size;
+        return true;
+    }
+
+    private long getChecksum(long size) {
+        Long checksum = mChecksums.get(size);
+        if (checksum == null) {
+            if (mChunkChecksum == -1) mChunkChecksum = getChunkChecksum(CHUNK_SIZE);
+            // CRC of the whole chunks by doubling, then of the partial last chunk
+            long crc = 0;
+            long power = mChunkChecksum;
+            long powerLength = CHUNK_SIZE;
+            for (long chunks = size / CHUNK_SIZE; chunks > 0; chunks >>= 1) {
+                if ((chunks & 1) != 0) crc = Crc32c.combine(crc, power, powerLength);
+                if (chunks > 1) {
+                    power = Crc32c.combine(power, power, powerLength);
+                    powerLength *= 2;
+                }
+            }
+            int tail = (int) (size % CHUNK_SIZE);
+            checksum = Crc32c.combine(crc, getChunkChecksum(tail), tail);
+            mChecksums.put(size, checksum);
+        }
+        return checksum;
+    }
+
+    private static long getChunkChecksum(int length) {
+        Crc32c crc = new Crc32c();
+        crc.update(CHUNK.duplicate().order(ByteOrder.LITTLE_ENDIAN), 0, length);
+        return crc.getValue();
+    }
+
+    private void receiveDatagrams() throws IOException {
+        while (true) {
+            mDatagram.clear();
+            SocketAddress sender = mUdpChannel.receive(mDatagram);
+            if (sender == null) return;
+            mDatagramCount.incrementAndGet();
+            mDatagramBytes.addAndGet(mDatagram.position());
+            if (mUdpEcho) {
+                mDatagram.flip();
+                // Dropped if the send buffer is full, as a real network would
+                mUdpChannel.send(mDatagram, sender);
+            }
+        }
+    }
+
+    private void closeConnection(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * State of one HTTP connection
+     */
+    private static class Connection {
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        // Response header being written, null between requests
+        ByteBuffer header;
+        long bodyLeft;
+        // Request body left to discard before the response is written
+        long uploadLeft;
+        boolean keepAlive;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        boolean udpEcho = args.length > 1 && args[1].equals("echo");
+        PayloadServer server = new PayloadServer(port, udpEcho);
+        System.out.println("Serving " + BYTES_PATH + "<n> and " + GENERATE_204_PATH
+                + " over HTTP and a UDP " + (udpEcho ? "echo" : "sink") + " on port "
+                + server.getPort());
+        server.serve();
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Bounded columnar store for Wi-Fi scan results.
+ *
+ * BSSIDs are packed into the low 48 bits of a long and looked up in an open
+ * addressing table. Every BSSID owns a fixed ring of the last historyDepth samples,
+ * and RSSI, frequency and timestamp are kept in flat primitive arrays indexed by
+ * entry * historyDepth + slot. Memory is allocated once, so a long soak never grows
+ * the heap: BSSIDs seen after maxBssids is reached are only counted.
+ */
+public class ScanResultStore {
+    public static final int DEFAULT_MAX_BSSIDS = 1024;
+    public static final int DEFAULT_HISTORY_DEPTH = 16;
+    private static final long EMPTY_KEY = -1;
+
+    private final int mMaxBssids;
+    private final int mHistoryDepth;
+    private final long[] mTableKeys;
+    private final int[] mTableEntries;
+    private final int mTableMask;
+
+    private final long[] mBssids;
+    private final int[] mHeads;
+    private final int[] mSizes;
+    private final int[] mRssi;
+    private final int[] mFrequency;
+    private final long[] mTimestamp;
+    private int mEntryCount;
+    private long mSampleCount;
+    private long mRejectedCount;
+
+    public ScanResultStore() {
+        this(DEFAULT_MAX_BSSIDS, DEFAULT_HISTORY_DEPTH);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxBssids - max number of distinct BSSIDs tracked
+     * @param historyDepth - samples kept per BSSID, older ones are overwritten
+     */
+    public ScanResultStore(int maxBssids, int historyDepth) {
+        mMaxBssids = maxBssids;
+        mHistoryDepth = historyDepth;
+        // Keep the load factor at or below 0.5 so probe sequences stay short
+        int tableSize = Integer.highestOneBit(Math.max(2, maxBssids) * 2 - 1) << 1;
+        mTableKeys = new long[tableSize];
+        mTableEntries = new int[tableSize];
+        mTableMask = tableSize - 1;
+        Arrays.fill(mTableKeys, EMPTY_KEY);
+
+        mBssids = new long[maxBssids];
+        mHeads = new int[maxBssids];
+        mSizes = new int[maxBssids];
+        mRssi = new int[maxBssids * historyDepth];
+        mFrequency = new int[maxBssids * historyDepth];
+        mTimestamp = new long[maxBssids * historyDepth];
+    }
+
+    /**
+     * Packs a "aa:bb:cc:dd:ee:ff" BSSID into a long, or returns -1 if it is malformed
+     *
+     * @param bssid - BSSID string
+     */
+    public static long packBssid(String bssid) {
+        if (bssid == null || bssid.length() != 17) return EMPTY_KEY;
+        long packed = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = bssid.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') return EMPTY_KEY;
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) return EMPTY_KEY;
+            packed = (packed << 4) | digit;
+        }
+        return packed;
+    }
+
+    /**
+     * Formats a packed BSSID back to "aa:bb:cc:dd:ee:ff"
+     *
+     * @param packed - BSSID packed by packBssid
+     */
+    public static String unpackBssid(long packed) {
+        StringBuilder sb = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int octet = (int) (packed >>> shift) & 0xff;
+            if (shift != 40) sb.append(':');
+            sb.append(Character.forDigit(octet >>> 4, 16));
+            sb.append(Character.forDigit(octet & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Add one scan result
+     *
+     * @param bssid - BSSID string
+     * @param rssi - signal level in dBm
+     * @param frequency - channel frequency in MHz
+     * @param timestamp - time the result was seen, in microseconds since boot
+     * @return false if the result was malformed or the store is full
+     */
+    public boolean add(String bssid, int rssi, int frequency, long timestamp) {
+        long key = packBssid(bssid);
+        if (key == EMPTY_KEY) return false;
+        return add(key, rssi, frequency, timestamp);
+    }
+
+    /**
+     * Add one scan result for a packed BSSID
+     */
+    public synchronized boolean add(long bssid, int rssi, int frequency, long timestamp) {
+        int entry = findOrInsert(bssid);
+        if (entry < 0) {
+            mRejectedCount++;
+            return false;
+        }
+        int slot = entry * mHistoryDepth + mHeads[entry];
+        mRssi[slot] = rssi;
+        mFrequency[slot] = frequency;
+        mTimestamp[slot] = timestamp;
+        mHeads[entry] = (mHeads[entry] + 1) % mHistoryDepth;
+        if (mSizes[entry] < mHistoryDepth) mSizes[entry]++;
+        mSampleCount++;
+        return true;
+    }
+
+    public synchronized int getBssidCount() {
+        return mEntryCount;
+    }
+
+    public synchronized long getSampleCount() {
+        return mSampleCount;
+    }
+
+    public synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * Forget all BSSIDs and samples
+     */
+    public synchronized void clear() {
+        Arrays.fill(mTableKeys, EMPTY_KEY);
+        Arrays.fill(mHeads, 0);
+        Arrays.fill(mSizes, 0);
+        mEntryCount = 0;
+        mSampleCount = 0;
+        mRejectedCount = 0;
+    }
+
+    /**
+     * Returns a consistent copy of the store, oldest sample first for every BSSID
+     */
+    public synchronized Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot(mEntryCount, mHistoryDepth);
+        for (int entry = 0; entry < mEntryCount; entry++) {
+            snapshot.bssids[entry] = mBssids[entry];
+            snapshot.sizes[entry] = mSizes[entry];
+            int oldest = (mHeads[entry] - mSizes[entry] + mHistoryDepth) % mHistoryDepth;
+            for (int i = 0; i < mSizes[entry]; i++) {
+                int from = entry * mHistoryDepth + (oldest + i) % mHistoryDepth;
+                int to = entry * mHistoryDepth + i;
+                snapshot.rssi[to] = mRssi[from];
+                snapshot.frequency[to] = mFrequency[from];
+                snapshot.timestamp[to] = mTimestamp[from];
+            }
+        }
+        snapshot.sampleCount = mSampleCount;
+        snapshot.rejectedCount = mRejectedCount;
+        return snapshot;
+    }
+
+    /**
+     * Returns a one line summary of the store
+     */
+    public synchronized String toSummaryString() {
+        return "bssids=" + mEntryCount + "/" + mMaxBssids + " samples=" + mSampleCount
+                + " rejected=" + mRejectedCount;
+    }
+
+    private int findOrInsert(long key) {
+        int index = hash(key) & mTableMask;
+        while (true) {
+            long existing = mTableKeys[index];
+            if (existing == key) return mTableEntries[index];
+            if (existing == EMPTY_KEY) break;
+            index = (index + 1) & mTableMask;
+        }
+        if (mEntryCount == mMaxBssids) return -1;
+        int entry = mEntryCount++;
+        mTableKeys[index] = key;
+        mTableEntries[index] = entry;
+        mBssids[entry] = key;
+        mHeads[entry] = 0;
+        mSizes[entry] = 0;
+        return entry;
+    }
+
+    private static int hash(long key) {
+        key *= 0x9e3779b97f4a7c15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    /**
+     * Copy of the store contents, in the same columnar layout
+     */
+    public static class Snapshot {
+        public final int historyDepth;
+        public final long[] bssids;
+        public final int[] sizes;
+        public final int[] rssi;
+        public final int[] frequency;
+        public final long[] timestamp;
+        public long sampleCount;
+        public long rejectedCount;
+
+        Snapshot(int bssidCount, int depth) {
+            historyDepth = depth;
+            bssids = new long[bssidCount];
+            sizes = new int[bssidCount];
+            rssi = new int[bssidCount * depth];
+            frequency = new int[bssidCount * depth];
+            timestamp = new long[bssidCount * depth];
+        }
+
+        /**
+         * Export the snapshot as JSON:
+         * {"ScanResults":[{"BSSID":..,"Rssi":[..],"Frequency":[..],"Timestamp":[..]}]}
+         *
+         * @param writer - destination of the JSON text
+         */
+        public void writeJson(Writer writer) throws IOException {
+            writer.write("{\"SampleCount\":" + sampleCount + ",\"RejectedCount\":"
+                    + rejectedCount + ",\"ScanResults\":[");
+            for (int entry = 0; entry < bssids.length; entry++) {
+                if (entry > 0) writer.write(',');
+                writer.write("{\"BSSID\":\"" + unpackBssid(bssids[entry]) + "\"");
+                int base = entry * historyDepth;
+                writer.write(",\"Rssi\":[");
+                for (int i = 0; i < sizes[entry]; i++) {
+                    if (i > 0) writer.write(',');
+                    writer.write(Integer.toString(rssi[base + i]));
+                }
+                writer.write("],\"Frequency\":[");
+                for (int i = 0; i < sizes[entry]; i++) {
+                    if (i > 0) writer.write(',');
+                    writer.write(Integer.toString(frequency[base + i]));
+                }
+                writer.write("],\"Timestamp\":[");
+                for (int i = 0; i < sizes[entry]; i++) {
+                    if (i > 0) writer.write(',');
+                    writer.write(Long.toString(timestamp[base + i]));
+                }
+                writer.write("]}");
+            }
+            writer.write("]}\n");
+        }
+    }
+}
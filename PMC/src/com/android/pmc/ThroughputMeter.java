@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free throughput meter with sliding windows.
+ *
+ * Every transfer is recorded with its size and the time the radio was actually busy
+ * with it. The wall clock rate divides bytes by elapsed time, idle time between
+ * transfers included; the active rate divides by busy time only. Besides the totals
+ * since start, both rates are kept over sliding windows of WINDOW_SECONDS made of one
+ * second buckets. A bucket packs its second in the top bits and its count in the low
+ * bits of one long, so rolling it over and adding to it is a single compare and set.
+ *
+ * Timestamps are passed in by the caller, in nanoseconds of a clock that keeps
+ * running while the device sleeps (SystemClock.elapsedRealtimeNanos on Android).
+ */
+public class ThroughputMeter {
+    public static final int[] WINDOW_SECONDS = {1, 10, 60};
+    private static final int BUCKETS = 64;
+    private static final int COUNT_BITS = 40;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final long SECOND_MASK = (1L << (64 - COUNT_BITS)) - 1;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final long mStartNanos;
+    private final AtomicLong mTotalBytes = new AtomicLong();
+    private final AtomicLong mTotalActiveNanos = new AtomicLong();
+    private final AtomicLongArray mBytesBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray mActiveBuckets = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Constructor
+     *
+     * @param startNanos - time the measurement starts
+     */
+    public ThroughputMeter(long startNanos) {
+        mStartNanos = startNanos;
+    }
+
+    /**
+     * Record one transfer, attributed to the second it completed in.
+     *
+     * @param bytes - bytes transferred
+     * @param activeNanos - time spent transferring them
+     * @param nowNanos - time the transfer completed
+     */
+    public void record(long bytes, long activeNanos, long nowNanos) {
+        long second = secondOf(nowNanos);
+        mTotalBytes.addAndGet(bytes);
+        mTotalActiveNanos.addAndGet(activeNanos);
+        add(mBytesBuckets, second, bytes);
+        add(mActiveBuckets, second, activeNanos);
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes.get();
+    }
+
+    /**
+     * Returns bytes per second since start, idle time included
+     *
+     * @param nowNanos - current time
+     */
+    public long getWallClockRate(long nowNanos) {
+        return rate(mTotalBytes.get(), nowNanos - mStartNanos);
+    }
+
+    /**
+     * Returns bytes per second over the time spent transferring
+     */
+    public long getActiveRate() {
+        return rate(mTotalBytes.get(), mTotalActiveNanos.get());
+    }
+
+    /**
+     * Returns the totals and the sliding windows as JSON:
+     * {"TotalBytes":..,"ElapsedMillis":..,"ActiveMillis":..,"WallClockRate":..,
+     *  "ActiveRate":..,"Windows":[{"Seconds":1,"Bytes":..,"WallClockRate":..,
+     *  "ActiveRate":..},..]}
+     * with rates in bytes per second.
+     *
+     * @param nowNanos - current time
+     */
+    public String toJson(long nowNanos) {
+        long totalBytes = mTotalBytes.get();
+        long activeNanos = mTotalActiveNanos.get();
+        long elapsedNanos = nowNanos - mStartNanos;
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"TotalBytes\":").append(totalBytes)
+                .append(",\"ElapsedMillis\":").append(elapsedNanos / 1000000)
+                .append(",\"ActiveMillis\":").append(activeNanos / 1000000)
+                .append(",\"WallClockRate\":").append(rate(totalBytes, elapsedNanos))
+                .append(",\"ActiveRate\":").append(rate(totalBytes, activeNanos))
+                .append(",\"Windows\":[");
+        long second = secondOf(nowNanos);
+        for (int i = 0; i < WINDOW_SECONDS.length; i++) {
+            int window = WINDOW_SECONDS[i];
+            long windowBytes = sum(mBytesBuckets, second, window);
+            long windowActiveNanos = sum(mActiveBuckets, second, window);
+            // The current second is only partly over, and so may be the measurement
+            long windowNanos = Math.min(elapsedNanos,
+                    (window - 1) * NANOS_PER_SECOND + (elapsedNanos % NANOS_PER_SECOND));
+            if (i > 0) sb.append(',');
+            sb.append("{\"Seconds\":").append(window)
+                    .append(",\"Bytes\":").append(windowBytes)
+                    .append(",\"WallClockRate\":").append(rate(windowBytes, windowNanos))
+                    .append(",\"ActiveRate\":").append(rate(windowBytes, windowActiveNanos))
+                    .append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private long secondOf(long nanos) {
+        return ((nanos - mStartNanos) / NANOS_PER_SECOND) & SECOND_MASK;
+    }
+
+    private static void add(AtomicLongArray buckets, long second, long count) {
+        int index = (int) (second % BUCKETS);
+        while (true) {
+            long current = buckets.get(index);
+            long updated = (current >>> COUNT_BITS) == second
+                    ? current + count : (second << COUNT_BITS) | (count & COUNT_MASK);
+            if (buckets.compareAndSet(index, current, updated)) return;
+        }
+    }
+
+    private static long sum(AtomicLongArray buckets, long second, int window) {
+        long total = 0;
+        for (int i = 0; i < window; i++) {
+            long bucketSecond = (second - i) & SECOND_MASK;
+            long value = buckets.get((int) (bucketSecond % BUCKETS));
+            if ((value >>> COUNT_BITS) == bucketSecond) total += value & COUNT_MASK;
+        }
+        return total;
+    }
+
+    private static long rate(long bytes, long nanos) {
+        if (nanos <= 0) return 0;
+        // In double, bytes * 10^9 would overflow a long after a few GB
+        return (long) ((double) bytes * NANOS_PER_SECOND / nanos);
+    }
+}
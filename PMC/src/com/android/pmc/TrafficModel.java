@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Inter-arrival times of download cycles.
+ *
+ * A model is described by a spec string, with all times in milliseconds:
+ *
+ *   periodic:<interval>               one cycle every interval
+ *   poisson:<mean>                    exponential gaps of the given mean
+ *   onoff:<interval>:<meanOn>:<meanOff>
+ *                                     bursts of cycles every interval, for
+ *                                     exponential on periods separated by
+ *                                     exponential off periods
+ *   trace:<file>                      gaps read from a file, one per line, '#'
+ *                                     starting a comment; replayed in a loop
+ *
+ * Random gaps come from a generator seeded by the caller, so the same spec and seed
+ * always give the same sequence.
+ */
+public class TrafficModel {
+    public static final String MODEL_PERIODIC = "periodic";
+    public static final String MODEL_POISSON = "poisson";
+    public static final String MODEL_ON_OFF = "onoff";
+    public static final String MODEL_TRACE = "trace";
+
+    private final String mSpec;
+    private final String mModel;
+    private final long[] mParams;
+    private final long[] mTrace;
+    private final Random mRandom;
+    private int mTraceIndex;
+    private long mOnLeftMillis;
+    private long mArrivalCount;
+    private long mTotalDelayMillis;
+    private long mMinDelayMillis = Long.MAX_VALUE;
+    private long mMaxDelayMillis;
+
+    private TrafficModel(String spec, String model, long[] params, long[] trace, long seed) {
+        mSpec = spec;
+        mModel = model;
+        mParams = params;
+        mTrace = trace;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Parse a model spec.
+     *
+     * @param spec - model name and its parameters separated by ':'
+     * @param seed - seed of the random gaps
+     * @throws IllegalArgumentException if the spec is malformed or the trace unreadable
+     */
+    public static TrafficModel parse(String spec, long seed) {
+        String[] parts = spec.trim().split(":");
+        String model = parts[0].toLowerCase(Locale.ROOT);
+        if (model.equals(MODEL_TRACE)) {
+            if (parts.length < 2) {
+                throw new IllegalArgumentException("Missing trace file: " + spec);
+            }
+            // The file name may itself contain ':'
+            String file = spec.trim().substring(MODEL_TRACE.length() + 1);
+            return new TrafficModel(spec, model, null, readTrace(file), seed);
+        }
+        int count;
+        if (model.equals(MODEL_PERIODIC) || model.equals(MODEL_POISSON)) {
+            count = 1;
+        } else if (model.equals(MODEL_ON_OFF)) {
+            count = 3;
+        } else {
+            throw new IllegalArgumentException("Unknown traffic model: " + spec);
+        }
+        if (parts.length != count + 1) {
+            throw new IllegalArgumentException("Expected " + count + " parameters: " + spec);
+        }
+        long[] params = new long[count];
+        for (int i = 0; i < count; i++) {
+            try {
+                params[i] = Long.parseLong(parts[i + 1].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid traffic model time: " + spec);
+            }
+            if (params[i] <= 0) {
+                throw new IllegalArgumentException("Invalid traffic model time: " + spec);
+            }
+        }
+        return new TrafficModel(spec, model, params, null, seed);
+    }
+
+    private static long[] readTrace(String file) {
+        List<Long> gaps = new ArrayList<Long>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) line = line.substring(0, comment);
+                line = line.trim();
+                if (line.length() == 0) continue;
+                long gap = Long.parseLong(line);
+                if (gap < 0) throw new IllegalArgumentException("Negative gap in " + file);
+                gaps.add(gap);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read trace " + file + ": " + e);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid gap in trace " + file);
+        }
+        if (gaps.isEmpty()) throw new IllegalArgumentException("Empty trace " + file);
+        long[] trace = new long[gaps.size()];
+        for (int i = 0; i < trace.length; i++) {
+            trace[i] = gaps.get(i);
+        }
+        return trace;
+    }
+
+    /**
+     * Returns the time until the next cycle, and counts it as scheduled.
+     */
+    public synchronized long nextDelayMillis() {
+        long delay;
+        if (mModel.equals(MODEL_PERIODIC)) {
+            delay = mParams[0];
+        } else if (mModel.equals(MODEL_POISSON)) {
+            delay = exponential(mParams[0]);
+        } else if (mModel.equals(MODEL_ON_OFF)) {
+            long interval = mParams[0];
+            if (mOnLeftMillis >= interval) {
+                mOnLeftMillis -= interval;
+                delay = interval;
+            } else {
+                // The burst is over, the next one starts after an off period
+                delay = mOnLeftMillis + exponential(mParams[2]);
+                mOnLeftMillis = exponential(mParams[1]);
+            }
+        } else {
+            delay = mTrace[mTraceIndex];
+            mTraceIndex = (mTraceIndex + 1) % mTrace.length;
+        }
+        mArrivalCount++;
+        mTotalDelayMillis += delay;
+        mMinDelayMillis = Math.min(mMinDelayMillis, delay);
+        mMaxDelayMillis = Math.max(mMaxDelayMillis, delay);
+        return delay;
+    }
+
+    private long exponential(long mean) {
+        return Math.round(-mean * Math.log(1 - mRandom.nextDouble()));
+    }
+
+    /**
+     * Returns the gaps scheduled so far
+     */
+    public synchronized String getStats() {
+        return String.format("model=%s arrivals=%d meanGap=%dms minGap=%dms maxGap=%dms",
+                mSpec, mArrivalCount, mArrivalCount == 0 ? 0 : mTotalDelayMillis / mArrivalCount,
+                mArrivalCount == 0 ? 0 : mMinDelayMillis, mMaxDelayMillis);
+    }
+
+    @Override
+    public String toString() {
+        return mSpec;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.pmc;
+
+import android.content.Context;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiScanner;
+import android.net.wifi.WifiScanner.ScanData;
+import android.net.wifi.WifiScanner.ScanSettings;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Long running background scan where the firmware caches several scans and reports
+ * them together.
+ *
+ * Unlike WifiGScanReceiver no alarm is used: the scan is started once with
+ * periodInMs, maxScansToCache and reportEvents set, and the device only wakes up
+ * when the firmware delivers a batch. Every delivery counts as one wakeup; the time
+ * between each scan and its delivery is recorded in a latency histogram.
+ */
+public class WifiBatchedGScan {
+    public static final String REPORT_BUFFER_FULL = "BufferFull";
+    public static final String REPORT_EACH_SCAN = "EachScan";
+    public static final int DEFAULT_BATCH_SIZE = 10;
+    private static final int BSSIDS_PER_SCAN = 32;
+
+    private final PMCMainActivity mPMCMainActivity;
+    private final WifiScanner mScan;
+    private final ScanSettings mScanSettings;
+    private final LatencyHistogram mDeliveryLatency;
+    private final ScanResultStore mScanResultStore;
+    private final BatchScanListener mListener = new BatchScanListener();
+    private long mWakeupCount = 0;
+    private long mScanCount = 0;
+    private long mResultCount = 0;
+    private int mMaxScansPerWakeup = 0;
+
+    /**
+     * Constructor
+     *
+     * @param activity - PMC main activity
+     * @param plan - channel plan scanned
+     * @param periodMillis - time between two scans done by the firmware
+     * @param batchSize - number of scans cached before they are reported
+     * @param reportEvents - REPORT_BUFFER_FULL or REPORT_EACH_SCAN
+     * @throws IllegalArgumentException if reportEvents is unknown
+     */
+    public WifiBatchedGScan(PMCMainActivity activity, ChannelPlan plan, int periodMillis,
+                            int batchSize, String reportEvents) {
+        mPMCMainActivity = activity;
+        mScan = (WifiScanner) activity.getSystemService(Context.WIFI_SCANNING_SERVICE);
+        mScanSettings = plan.toScanSettings();
+        mScanSettings.periodInMs = periodMillis;
+        mScanSettings.maxScansToCache = batchSize;
+        mScanSettings.numBssidsPerScan = BSSIDS_PER_SCAN;
+        if (reportEvents.equalsIgnoreCase(REPORT_BUFFER_FULL)) {
+            mScanSettings.reportEvents = WifiScanner.REPORT_EVENT_AFTER_BUFFER_FULL;
+        } else if (reportEvents.equalsIgnoreCase(REPORT_EACH_SCAN)) {
+            mScanSettings.reportEvents = WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN;
+        } else {
+            throw new IllegalArgumentException("Unknown report events: " + reportEvents);
+        }
+        mDeliveryLatency = activity.getScanLatencyHistogram(
+                WifiGScanReceiver.getScanLatencyKey(mScanSettings)
+                        .replace("GScan/", "GScanBatch/"));
+        mScanResultStore = activity.getScanResultStore();
+    }
+
+    /**
+     * Start the background scan, results are delivered until stop is called.
+     */
+    public void start() {
+        Log.i(PMCMainActivity.TAG, "Starting batched GScan, period " + mScanSettings.periodInMs
+                + " ms, batch " + mScanSettings.maxScansToCache);
+        mScan.startBackgroundScan(mScanSettings, mListener);
+    }
+
+    public void stop() {
+        mScan.stopBackgroundScan(mListener);
+    }
+
+    /**
+     * Returns wakeups, scans and results delivered so far, with the delivery latency
+     */
+    public synchronized String getStats() {
+        double scansPerWakeup = mWakeupCount == 0 ? 0 : (double) mScanCount / mWakeupCount;
+        double resultsPerWakeup = mWakeupCount == 0 ? 0 : (double) mResultCount / mWakeupCount;
+        return String.format("wakeups=%d scans=%d results=%d scansPerWakeup=%.1f"
+                + " (max %d) resultsPerWakeup=%.1f delivery: %s", mWakeupCount, mScanCount,
+                mResultCount, scansPerWakeup, mMaxScansPerWakeup, resultsPerWakeup,
+                mDeliveryLatency.toSummaryString());
+    }
+
+    private synchronized void onBatch(ScanData[] results) {
+        long nowMicros = SystemClock.elapsedRealtimeNanos() / 1000;
+        int scans = 0;
+        for (ScanData data : results) {
+            ScanResult[] scanResults = data.getResults();
+            if (scanResults == null) continue;
+            scans++;
+            // Results of one scan share its end time, take the newest as the scan time
+            long scanTimeMicros = 0;
+            for (ScanResult result : scanResults) {
+                mScanResultStore.add(result.BSSID, result.level, result.frequency,
+                        result.timestamp);
+                scanTimeMicros = Math.max(scanTimeMicros, result.timestamp);
+            }
+            if (scanTimeMicros > 0) mDeliveryLatency.record(nowMicros - scanTimeMicros);
+            mResultCount += scanResults.length;
+        }
+        mWakeupCount++;
+        mScanCount += scans;
+        mMaxScansPerWakeup = Math.max(mMaxScansPerWakeup, scans);
+    }
+
+    private class BatchScanListener implements WifiScanner.ScanListener {
+        @Override
+        public void onSuccess() {
+            Log.d(PMCMainActivity.TAG, "Batched GScan started");
+        }
+
+        @Override
+        public void onFailure(int reason, String description) {
+            final String error = "Batched GScan failed: " + reason + " " + description;
+            Log.e(PMCMainActivity.TAG, error);
+            mPMCMainActivity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mPMCMainActivity.updateProgressStatus(error);
+                }
+            });
+        }
+
+        @Override
+        public void onPeriodChanged(int periodInMs) {
+            Log.d(PMCMainActivity.TAG, "Batched GScan period changed to " + periodInMs);
+        }
+
+        @Override
+        public void onFullResult(ScanResult fullScanResult) {
+        }
+
+        @Override
+        public void onResults(ScanData[] results) {
+            if (results == null) return;
+            onBatch(results);
+            final String stats = getStats();
+            Log.d(PMCMainActivity.TAG, "Batched GScan delivered " + results.length
+                    + " scans, " + stats);
+            mPMCMainActivity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mPMCMainActivity.updateProgressStatus("Batched GScan :: " + stats);
+                }
+            });
+        }
+    }
+}
@@ -6,19 +6,32 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
 import android.os.AsyncTask;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Call wifi scan whenever an alarm is received.
  */
 public class WifiConnScanReceiver extends BroadcastReceiver {
+    private static final long SCAN_TIMEOUT_MILLIS = 10 * 1000;
+    // Connectivity scans always cover every supported channel
+    static final String SCAN_LATENCY_KEY = "ConnScan/All";
     int mScanCount = 0;
+    long mLastScanLatencyNanos = -1;
+    LatencyHistogram mScanLatency;
+    ScanResultStore mScanResultStore;
     ConnectvityScanTask mConnScanTask;
     PMCMainActivity mPMCMainActivity;
+    private final ScanResultsDispatcher mScanResultsDispatcher = new ScanResultsDispatcher();
+    private boolean mDispatcherRegistered;
     private WifiManager mWifiManager;
     private Context mContext;
     private PowerManager.WakeLock mWakeLock;
@@ -29,6 +42,14 @@ public class WifiConnScanReceiver extends BroadcastReceiver {
     public WifiConnScanReceiver(PMCMainActivity activity, int interval, AlarmManager alarmManager,
                                 PendingIntent alarmIntent) {
         mPMCMainActivity = activity;
+        mWifiManager = (WifiManager) activity.getApplicationContext()
+                .getSystemService(Context.WIFI_SERVICE);
+        // One receiver for the whole session, scan tasks only come and go
+        activity.getApplicationContext().registerReceiver(mScanResultsDispatcher,
+                new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+        mDispatcherRegistered = true;
+        mScanLatency = activity.getScanLatencyHistogram(SCAN_LATENCY_KEY);
+        mScanResultStore = activity.getScanResultStore();
         mScanCount = 0;
         mAlarmInterval = interval;
         mAlarmManager = alarmManager;
@@ -50,8 +71,6 @@ public class WifiConnScanReceiver extends BroadcastReceiver {
             mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "WIFITEST");
             // Acquire the lock
             mWakeLock.acquire();
-            mWifiManager = (WifiManager) context.getApplicationContext()
-                    .getSystemService(Context.WIFI_SERVICE);
             Log.i(PMCMainActivity.TAG, "Starting Connectivity Scan Task");
             mConnScanTask = new ConnectvityScanTask();
             mConnScanTask.execute();
@@ -69,43 +88,123 @@ public class WifiConnScanReceiver extends BroadcastReceiver {
     }
 
     /**
-     * Cancel the connectivity scans.
+     * Cancel the connectivity scans. Safe to call more than once.
      */
     public void cancelConnScan() {
         mAlarmManager.cancel(mAlarmIntent);
         if (mConnScanTask != null) mConnScanTask.cancel(true);
+        if (mDispatcherRegistered) {
+            mPMCMainActivity.getApplicationContext().unregisterReceiver(mScanResultsDispatcher);
+            mDispatcherRegistered = false;
+        }
+    }
+
+    /**
+     * Returns how the scan results broadcasts of this session were dispatched.
+     */
+    public String getDispatchStats() {
+        return mScanResultsDispatcher.getStats();
+    }
+
+    /**
+     * Receives every scan results broadcast and completes the scan in flight, if any.
+     * Broadcasts arriving while no scan is in flight, or whose newest result was seen
+     * before the scan in flight was requested, are counted as late when a previous
+     * scan timed out, and as spurious otherwise (e.g. scans started by the framework).
+     * The latter keeps the late results of a timed out scan from completing the next
+     * one with the wrong latency. Results are stored in all cases.
+     */
+    class ScanResultsDispatcher extends BroadcastReceiver {
+        private ConnectvityScanTask mInFlight;
+        private long mInFlightRequestNanos;
+        private boolean mTimedOut;
+        private long mDispatchedCount;
+        private long mSpuriousCount;
+        private long mLateCount;
+
+        synchronized void begin(ConnectvityScanTask task, long requestTimeNanos) {
+            mInFlight = task;
+            mInFlightRequestNanos = requestTimeNanos;
+        }
+
+        synchronized void timeout(ConnectvityScanTask task) {
+            if (mInFlight == task) {
+                mInFlight = null;
+                mTimedOut = true;
+            }
+        }
+
+        synchronized String getStats() {
+            return "dispatched=" + mDispatchedCount + " spurious=" + mSpuriousCount
+                    + " late=" + mLateCount;
+        }
+
+        @Override
+        public void onReceive(Context c, Intent intent) {
+            String action = intent.getAction();
+            if (!action.equals(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION)) return;
+            long timeNanos = SystemClock.elapsedRealtimeNanos();
+            List<ScanResult> results = mWifiManager.getScanResults();
+            // Results are stamped in microseconds since boot, the clock of the request
+            long newestNanos = -1;
+            if (results != null) {
+                for (ScanResult result : results) {
+                    newestNanos = Math.max(newestNanos, result.timestamp * 1000);
+                }
+            }
+            synchronized (this) {
+                // Without any result there is nothing to tell the scan by
+                boolean stale = newestNanos >= 0 && newestNanos < mInFlightRequestNanos;
+                if (mInFlight != null && !stale) {
+                    Log.d(PMCMainActivity.TAG, "Wifi connection scan finished, results available.");
+                    mInFlight.complete(timeNanos);
+                    mInFlight = null;
+                    mDispatchedCount++;
+                } else if (mTimedOut) {
+                    Log.w(PMCMainActivity.TAG, "Scan results received after the scan timed out");
+                    mTimedOut = false;
+                    mLateCount++;
+                } else {
+                    Log.d(PMCMainActivity.TAG, "Scan results received with no scan in flight");
+                    mSpuriousCount++;
+                }
+            }
+            if (results == null) return;
+            for (ScanResult result : results) {
+                mScanResultStore.add(result.BSSID, result.level, result.frequency,
+                        result.timestamp);
+            }
+        }
     }
 
     class ConnectvityScanTask extends AsyncTask<Integer, Integer, String> {
-        WifiScanReceiver mWifiScanReceiver;
-        Boolean mScanCompleted = false;
+        final CountDownLatch mScanCompleted = new CountDownLatch(1);
+        volatile long mScanResultTimeNanos;
 
-        ConnectvityScanTask() {
-            mWifiScanReceiver = new WifiScanReceiver();
-            mContext.getApplicationContext().registerReceiver(mWifiScanReceiver,
-                    new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+        void complete(long timeNanos) {
+            mScanResultTimeNanos = timeNanos;
+            mScanCompleted.countDown();
         }
 
         @Override
         protected String doInBackground(Integer... stime) {
             //android.os.Debug.waitForDebugger();
-            int waitCount = 0;
             try {
-                mScanCompleted = false;
+                long scanRequestTimeNanos = SystemClock.elapsedRealtimeNanos();
+                mScanResultsDispatcher.begin(this, scanRequestTimeNanos);
                 mWifiManager.startScan();
-                while (!mScanCompleted) {
-                    if (waitCount >= 100) {
-                        return "Timeout, scan results avaiable action didn't triggered";
-                    } else {
-                        Thread.sleep(100);
-                        waitCount += 1;
-                    }
+                if (!mScanCompleted.await(SCAN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    mScanResultsDispatcher.timeout(this);
+                    return "Timeout, scan results avaiable action didn't triggered";
                 }
-                waitCount = 0;
+                mLastScanLatencyNanos = mScanResultTimeNanos - scanRequestTimeNanos;
+                mScanLatency.record(mLastScanLatencyNanos / 1000);
                 mScanCount += 1;
-                Log.d(PMCMainActivity.TAG, "Number of scan completed " + mScanCount);
-                publishProgress(mScanCount);
+                Log.d(PMCMainActivity.TAG, "Number of scan completed " + mScanCount
+                        + ", latency " + mLastScanLatencyNanos / 1000 + " us");
+                publishProgress(mScanCount, (int) (mLastScanLatencyNanos / 1000000));
             } catch (Exception e) {
+                mScanResultsDispatcher.timeout(this);
                 Log.e(PMCMainActivity.TAG, e.toString());
                 return e.toString();
             }
@@ -114,7 +213,7 @@ public class WifiConnScanReceiver extends BroadcastReceiver {
 
         @Override
         protected void onCancelled(String result) {
-            mContext.getApplicationContext().unregisterReceiver(mWifiScanReceiver);
+            mScanResultsDispatcher.timeout(this);
             mWakeLock.release();
         }
 
@@ -122,7 +221,8 @@ public class WifiConnScanReceiver extends BroadcastReceiver {
         protected void onProgressUpdate(Integer... values) {
             Log.d(PMCMainActivity.TAG, "ConnectvityScanTask onProgressUpdate updating the UI");
             mPMCMainActivity.updateProgressStatus("Total Connectivity scan completed :: "
-                    + Integer.toString(values[0].intValue()));
+                    + Integer.toString(values[0].intValue()) + ", Scan latency :: "
+                    + Integer.toString(values[1].intValue()) + " ms");
         }
 
         @Override
@@ -131,19 +231,7 @@ public class WifiConnScanReceiver extends BroadcastReceiver {
                 Log.e(PMCMainActivity.TAG, error);
                 mPMCMainActivity.updateProgressStatus(error);
             }
-            mContext.getApplicationContext().unregisterReceiver(mWifiScanReceiver);
             mWakeLock.release();
         }
-
-        class WifiScanReceiver extends BroadcastReceiver {
-            @Override
-            public void onReceive(Context c, Intent intent) {
-                String action = intent.getAction();
-                if (action.equals(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION)) {
-                    Log.d(PMCMainActivity.TAG, "Wifi connection scan finished, results available.");
-                    mScanCompleted = true;
-                }
-            }
-        }
     }
 }
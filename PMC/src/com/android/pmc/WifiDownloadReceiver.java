@@ -10,34 +10,105 @@ import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 /**
  * Call wifi Download data whenever an alarm is received.
+ *
+ * Every download cycle runs one stream per engine on a fixed size worker pool;
+ * stream i downloads url i modulo the number of urls. The wakelock is held until
+ * the last stream has received its last byte. When cycles per url is set, the first
+ * url moves to the next one every that many cycles, e.g. to sweep download sizes.
+ * A url ending in /upload/<n> uploads n generated bytes instead of downloading.
+ * Failed streams are counted by cause, so that corrupt and truncated transfers are
+ * told apart from slow ones, and the other streams of the cycle still count.
+ * With a traffic model set, cycles follow its inter-arrival times on exact alarms
+ * instead of the fixed interval.
  */
 public class WifiDownloadReceiver extends BroadcastReceiver {
-    private static final int DOWNLOAD_BUFFER_SIZE = 1024 * 4;
+    private static final long DOWNLOAD_TIMEOUT_MILLIS = 60 * 1000;
 
     DownloadTask mDownloadTask;
     PMCMainActivity mPMCMainActivity;
     int mFileCount;
-    int mBytesCount;
-    long mDownloadStartTime;
-    String mDownloadURL;
+    int mCycleCount;
+    int mCyclesPerUrl;
+    ThroughputMeter mThroughputMeter;
+    // Cycles are coordinated on their own thread rather than the shared AsyncTask executor
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService mStreamPool;
+    private final NioDownloadEngine[] mEngines;
+    // Per stream bytes and active time (TTFB plus transfer), for per stream throughput
+    private final AtomicLongArray mStreamBytes;
+    private final AtomicLongArray mStreamNanos;
+    private volatile long mLastCycleBytes;
+    private volatile long mLastCycleNanos;
+    // Failed streams by cause
+    private final AtomicLong mCorruptCount = new AtomicLong();
+    private final AtomicLong mTruncatedCount = new AtomicLong();
+    private final AtomicLong mTimeoutCount = new AtomicLong();
+    private final AtomicLong mErrorCount = new AtomicLong();
+    private final AtomicLong mVerifiedCount = new AtomicLong();
+    // Connect, TTFB and transfer histograms of every url
+    private final LatencyHistogram[] mConnectLatency;
+    private final LatencyHistogram[] mTtfbLatency;
+    private final LatencyHistogram[] mTransferLatency;
+    String[] mDownloadURLs;
     private Context mContext;
     private PowerManager.WakeLock mWakeLock;
     private int mAlarmInterval;
     private AlarmManager mAlarmManager;
     private PendingIntent mAlarmIntent;
+    private TrafficModel mTrafficModel;
 
-    public WifiDownloadReceiver(PMCMainActivity activity, String url, int interval,
+    /**
+     * Constructor
+     *
+     * @param activity - PMC main activity
+     * @param urls - files downloaded on every alarm
+     * @param streams - number of concurrent streams
+     * @param interval - time between two downloads in milliseconds
+     * @param keepAlive - keep the connection open between downloads (warm) or open a
+     *                    new one for every download (cold)
+     * @param idleTimeoutMillis - a kept connection idle for longer is not reused
+     * @param alarmManager - alarm manager to schedule the downloads
+     * @param alarmIntent - intent broadcast to this receiver by the alarm
+     */
+    public WifiDownloadReceiver(PMCMainActivity activity, String[] urls, int streams,
+                                int interval, boolean keepAlive, long idleTimeoutMillis,
                                 AlarmManager alarmManager, PendingIntent alarmIntent) {
         mPMCMainActivity = activity;
-        mDownloadURL = url;
+        mDownloadURLs = urls;
+        mStreamPool = Executors.newFixedThreadPool(streams);
+        mEngines = new NioDownloadEngine[streams];
+        for (int i = 0; i < streams; i++) {
+            mEngines[i] = new NioDownloadEngine();
+            mEngines[i].setKeepAlive(keepAlive, idleTimeoutMillis);
+        }
+        mConnectLatency = new LatencyHistogram[urls.length];
+        mTtfbLatency = new LatencyHistogram[urls.length];
+        mTransferLatency = new LatencyHistogram[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            String key = getDownloadLatencyKey(urls[i]);
+            mConnectLatency[i] = activity.getDownloadLatencyHistogram(key + "/Connect");
+            mTtfbLatency[i] = activity.getDownloadLatencyHistogram(key + "/TTFB");
+            mTransferLatency[i] = activity.getDownloadLatencyHistogram(key + "/Transfer");
+        }
+        mStreamBytes = new AtomicLongArray(streams);
+        mStreamNanos = new AtomicLongArray(streams);
         mFileCount = 0;
-        mBytesCount = 0;
-        mDownloadStartTime = -1;
+        mThroughputMeter = new ThroughputMeter(SystemClock.elapsedRealtimeNanos());
         mAlarmInterval = interval;
         mAlarmManager = alarmManager;
         mAlarmIntent = alarmIntent;
@@ -59,8 +130,11 @@ public class WifiDownloadReceiver extends BroadcastReceiver {
             // Acquire the lock
             mWakeLock.acquire();
             Log.i(PMCMainActivity.TAG, "Starting Download Task");
-            mDownloadTask = new DownloadTask();
-            mDownloadTask.execute(mDownloadURL);
+            int urlOffset = mCyclesPerUrl == 0 ? 0
+                    : (mCycleCount / mCyclesPerUrl) % mDownloadURLs.length;
+            mCycleCount++;
+            mDownloadTask = new DownloadTask(urlOffset);
+            mDownloadTask.executeOnExecutor(mExecutor, mDownloadURLs);
         }
         scheduleDownload();
     }
@@ -69,76 +143,306 @@ public class WifiDownloadReceiver extends BroadcastReceiver {
      * Schedule the next download.
      */
     public void scheduleDownload() {
-        if (mDownloadStartTime == -1) {
-            // Note down the start of all download activity
-            mDownloadStartTime = System.currentTimeMillis();
+        if (mTrafficModel != null) {
+            long delay = mTrafficModel.nextDelayMillis();
+            Log.i(PMCMainActivity.TAG, "Scheduling the next download after " + delay
+                    + " (" + mTrafficModel + ")");
+            // Inexact alarms would be batched and blur the modeled gaps
+            mAlarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                    SystemClock.elapsedRealtime() + delay, mAlarmIntent);
+            return;
         }
         Log.i(PMCMainActivity.TAG, "Scheduling the next download after " + mAlarmInterval);
         mAlarmManager.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP,
                 SystemClock.elapsedRealtime() + mAlarmInterval, mAlarmIntent);
     }
 
+    /**
+     * Schedule the downloads after the gaps of a traffic model rather than the fixed
+     * interval. Must be set before the first download is scheduled.
+     * @param model - traffic model, null for the fixed interval
+     */
+    public void setTrafficModel(TrafficModel model) {
+        mTrafficModel = model;
+    }
+
+    /**
+     * Returns the traffic model and the gaps scheduled so far.
+     */
+    public String getTrafficStats() {
+        if (mTrafficModel == null) return "model=periodic:" + mAlarmInterval;
+        return mTrafficModel.getStats();
+    }
+
     /**
      * Cancel the downloads.
      */
     public void cancelDownload() {
         mAlarmManager.cancel(mAlarmIntent);
         if (mDownloadTask != null) mDownloadTask.cancel(true);
+        // Engines are only used while a cycle runs, close them once the last one is over
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(PMCMainActivity.TAG, "Download connections: " + getConnectionStats());
+                for (NioDownloadEngine engine : mEngines) {
+                    engine.close();
+                }
+                mStreamPool.shutdown();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Returns how many connections were opened and reused by the downloads.
+     */
+    public String getConnectionStats() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mEngines.length; i++) {
+            if (i > 0) sb.append("; ");
+            sb.append("stream").append(i).append(": ").append(mEngines[i].getConnectionStats());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the throughput of every stream over its active time, and the aggregate
+     * throughput of the last cycle over its wall clock time.
+     */
+    public String getStreamStats() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mEngines.length; i++) {
+            long nanos = mStreamNanos.get(i);
+            sb.append("stream").append(i).append(": bytes=").append(mStreamBytes.get(i))
+                    .append(" rate=").append(nanos == 0 ? 0 : mStreamBytes.get(i) * 1000000000L
+                            / nanos).append(" bytes/sec; ");
+        }
+        long cycleNanos = mLastCycleNanos;
+        sb.append("aggregate: streams=").append(mEngines.length).append(" rate=")
+                .append(cycleNanos == 0 ? 0 : mLastCycleBytes * 1000000000L / cycleNanos)
+                .append(" bytes/sec");
+        return sb.toString();
     }
 
     /**
-     * Returns an approximate data rate at which we're downloading the files.
-     * @return
+     * Returns how many transfers were verified, and how many failed by cause.
      */
-    public int getDownloadRate() {
-        long durationInMilliSeconds = (System.currentTimeMillis() - mDownloadStartTime);
-        int durationInSeconds = (int) (durationInMilliSeconds / 1000);
-        return (mBytesCount / durationInSeconds);
+    public String getIntegrityStats() {
+        return "files=" + mFileCount + " verified=" + mVerifiedCount.get() + " corrupt="
+                + mCorruptCount.get() + " truncated=" + mTruncatedCount.get() + " timeouts="
+                + mTimeoutCount.get() + " errors=" + mErrorCount.get();
+    }
+
+    /**
+     * Check the CRC32C of downloads for which the server sends one.
+     * @param verify
+     */
+    public void setVerifyChecksum(boolean verify) {
+        for (NioDownloadEngine engine : mEngines) {
+            engine.setVerifyChecksum(verify);
+        }
+    }
+
+    /**
+     * Move to the next url every given number of cycles, 0 to keep the same urls.
+     * @param cyclesPerUrl
+     */
+    public void setCyclesPerUrl(int cyclesPerUrl) {
+        mCyclesPerUrl = cyclesPerUrl;
+    }
+
+    /**
+     * Parse download sizes, either "min:max:factor" for a geometric sweep from min
+     * up to max, or a comma separated list of sizes in bytes. Sizes are at least 1.
+     * @param spec
+     * @throws IllegalArgumentException if the spec is malformed
+     */
+    static long[] parseSizes(String spec) {
+        try {
+            String[] sweep = spec.split(":");
+            if (sweep.length == 3) {
+                long min = Long.parseLong(sweep[0].trim());
+                long max = Long.parseLong(sweep[1].trim());
+                double factor = Double.parseDouble(sweep[2].trim());
+                if (min <= 0 || max < min || factor <= 1) {
+                    throw new IllegalArgumentException("Invalid download size sweep: " + spec);
+                }
+                List<Long> sizes = new ArrayList<Long>();
+                for (double size = min; size <= max; size *= factor) {
+                    // Skip sizes the rounding made equal to the previous one
+                    if (sizes.isEmpty() || sizes.get(sizes.size() - 1) != Math.round(size)) {
+                        sizes.add(Math.round(size));
+                    }
+                }
+                long[] result = new long[sizes.size()];
+                for (int i = 0; i < result.length; i++) {
+                    result[i] = sizes.get(i);
+                }
+                return result;
+            }
+            String[] list = spec.split(",");
+            long[] result = new long[list.length];
+            for (int i = 0; i < list.length; i++) {
+                result[i] = Long.parseLong(list[i].trim());
+                // An empty upload would go out as a GET, which the server does not serve
+                if (result[i] <= 0) {
+                    throw new IllegalArgumentException("Invalid download size: " + list[i]);
+                }
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid download sizes: " + spec);
+        }
+    }
+
+    /**
+     * Returns the number of bytes to upload for a url ending in /upload/<n>, or -1
+     * if the url is a download.
+     * @param url
+     */
+    static long getUploadSize(String url) {
+        int upload = url.indexOf(PayloadServer.UPLOAD_PATH + "/");
+        if (upload < 0) return -1;
+        try {
+            return Long.parseLong(url.substring(upload + PayloadServer.UPLOAD_PATH.length() + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the histogram key of a url, its file name without extension, e.g.
+     * "Download/1mb" for http://server/1mb.txt, "Download/bytes/4096" for
+     * http://server/bytes/4096 or "Upload/bytes/4096" for http://server/upload/4096.
+     * @param url
+     */
+    static String getDownloadLatencyKey(String url) {
+        long upload = getUploadSize(url);
+        if (upload >= 0) return "Upload/bytes/" + upload;
+        int bytes = url.indexOf(PayloadServer.BYTES_PATH);
+        if (bytes >= 0) return "Download" + url.substring(bytes);
+        String name = url.substring(url.lastIndexOf('/') + 1);
+        int extension = name.lastIndexOf('.');
+        if (extension > 0) name = name.substring(0, extension);
+        return "Download/" + name;
+    }
+
+    /**
+     * Returns the data rate since the first download was scheduled, idle time included.
+     * @return bytes per second
+     */
+    public long getDownloadRate() {
+        return mThroughputMeter.getWallClockRate(SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Returns the total, windowed, active and wall clock data rates as JSON.
+     */
+    public String getDownloadRateJson() {
+        return mThroughputMeter.toJson(SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Release the wakelock as soon as the transfer is over, whichever of the task
+     * thread and the UI thread gets there first.
+     */
+    private synchronized void releaseWakeLock() {
+        if (mWakeLock != null && mWakeLock.isHeld()) mWakeLock.release();
     }
 
     class DownloadTask extends AsyncTask<String, Integer, String> {
+        private final int mUrlOffset;
+
+        DownloadTask(int urlOffset) {
+            mUrlOffset = urlOffset;
+        }
+
         @Override
         protected String doInBackground(String... sUrl) {
             //android.os.Debug.waitForDebugger();
-            Log.d(PMCMainActivity.TAG, "Starting background task for downloading file");
-            HttpURLConnection connection = null;
+            Log.d(PMCMainActivity.TAG, "Starting background task for downloading "
+                    + mEngines.length + " streams");
             try {
-                URL url = new URL(sUrl[0]);
-                connection = (HttpURLConnection) url.openConnection();
-                connection.connect();
-                // expect HTTP 200 OK, so we don't mistakenly save error report
-                // instead of the file
-                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                    return "Server returned HTTP " + connection.getResponseCode()
-                            + " " + connection.getResponseMessage();
+                List<Callable<NioDownloadEngine.Result>> streams =
+                        new ArrayList<Callable<NioDownloadEngine.Result>>();
+                for (int i = 0; i < mEngines.length; i++) {
+                    URL url = new URL(sUrl[(mUrlOffset + i) % sUrl.length]);
+                    streams.add(new StreamDownload(i, url));
                 }
-                // this will be useful to display download percentage
-                // might be -1: server did not report the length
-                int fileLength = connection.getContentLength();
-                int bytesRead = downloadFile(connection);
-                if (fileLength != bytesRead) {
-                    return "Expected file of size " + fileLength + " but only received "
-                            + bytesRead;
+                long cycleStartNanos = System.nanoTime();
+                List<Future<NioDownloadEngine.Result>> futures = mStreamPool.invokeAll(streams);
+                long cycleNanos = System.nanoTime() - cycleStartNanos;
+                // The last byte of every stream is in, the radio can go idle
+                releaseWakeLock();
+                long cycleBytes = 0;
+                long maxTtfbNanos = 0;
+                long maxTransferNanos = 0;
+                String error = null;
+                for (int i = 0; i < futures.size(); i++) {
+                    NioDownloadEngine.Result result;
+                    try {
+                        result = futures.get(i).get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof NioDownloadEngine.TruncatedException) {
+                            mTruncatedCount.incrementAndGet();
+                        } else if (cause instanceof SocketTimeoutException) {
+                            mTimeoutCount.incrementAndGet();
+                        } else {
+                            mErrorCount.incrementAndGet();
+                        }
+                        if (error == null) error = "Stream " + i + ": " + cause;
+                        continue;
+                    }
+                    // expect HTTP 200 OK, so we don't mistakenly count an error report
+                    // instead of the file
+                    if (result.statusCode != HttpURLConnection.HTTP_OK) {
+                        mErrorCount.incrementAndGet();
+                        if (error == null) {
+                            error = "Stream " + i + ": Server returned HTTP " + result.statusCode;
+                        }
+                        continue;
+                    }
+                    if (result.isCorrupt()) {
+                        mCorruptCount.incrementAndGet();
+                        if (error == null) error = "Stream " + i + ": Corrupt file " + result;
+                        continue;
+                    }
+                    if (result.checksum != -1) mVerifiedCount.incrementAndGet();
+                    Log.d(PMCMainActivity.TAG, "Stream " + i + " downloaded file " + result);
+                    int url = (mUrlOffset + i) % sUrl.length;
+                    // A reused connection has no connect phase
+                    if (!result.reused) mConnectLatency[url].record(result.connectNanos / 1000);
+                    mTtfbLatency[url].record(result.ttfbNanos / 1000);
+                    mTransferLatency[url].record(result.transferNanos / 1000);
+                    mFileCount += 1;
+                    cycleBytes += result.bodyBytes + result.sentBytes;
+                    maxTtfbNanos = Math.max(maxTtfbNanos, result.ttfbNanos);
+                    maxTransferNanos = Math.max(maxTransferNanos, result.transferNanos);
                 }
-                Log.d(PMCMainActivity.TAG, "Downloaded file size " + fileLength);
-                mFileCount += 1;
-                mBytesCount += fileLength;
-                publishProgress(mFileCount, getDownloadRate());
-                Thread.sleep(10000);
+                // Streams overlap, the cycle wall time is how long the radio was busy
+                mThroughputMeter.record(cycleBytes, cycleNanos,
+                        SystemClock.elapsedRealtimeNanos());
+                mLastCycleBytes = cycleBytes;
+                mLastCycleNanos = cycleNanos;
+                publishProgress(mFileCount, (int) getDownloadRate(),
+                        (int) (maxTtfbNanos / 1000000),
+                        (int) (maxTransferNanos / 1000000),
+                        (int) (cycleBytes * 1000000000L / Math.max(1, cycleNanos)));
+                if (error != null) return error;
             } catch (Exception e) {
                 Log.e(PMCMainActivity.TAG, e.toString());
                 return e.toString();
             } finally {
-                if (connection != null) {
-                    connection.disconnect();
-                }
+                releaseWakeLock();
             }
             return null;
         }
 
         @Override
         protected void onCancelled(String result) {
-            mWakeLock.release();
+            releaseWakeLock();
         }
 
         @Override
@@ -146,7 +450,11 @@ public class WifiDownloadReceiver extends BroadcastReceiver {
             Log.d(PMCMainActivity.TAG, "DownloadTask onProgressUpdate updating the UI");
             mPMCMainActivity.updateProgressStatus("Total file downloaded :: "
                     + values[0].toString() + ", Data rate :: "
-                    + values[1].toString() + " bytes/sec");
+                    + values[1].toString() + " bytes/sec, TTFB :: "
+                    + values[2].toString() + " ms, Transfer :: "
+                    + values[3].toString() + " ms"
+                    + (mEngines.length == 1 ? "" : ", Streams :: " + mEngines.length
+                            + ", Aggregate rate :: " + values[4].toString() + " bytes/sec"));
         }
 
         @Override
@@ -155,31 +463,32 @@ public class WifiDownloadReceiver extends BroadcastReceiver {
                 Log.e(PMCMainActivity.TAG, error);
                 mPMCMainActivity.updateProgressStatus(error);
             }
-            mWakeLock.release();
+            releaseWakeLock();
         }
+    }
 
-        private int downloadFile(HttpURLConnection connection) {
-            if (connection == null) return -1;
-            int totalBytesRead = 0;
-            InputStream inputStream = null;
-            // Just read out the input file, not saving it anywhere in the device
-            try {
-                inputStream = connection.getInputStream();
-                int bytesRead = -1;
-                byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    totalBytesRead += bytesRead;
-                }
-            } catch (Exception e) {
-                Log.e(PMCMainActivity.TAG, "Downloaded failed");
-            } finally {
-                try {
-                    if (inputStream != null) inputStream.close();
-                } catch (Exception e) {
-                    Log.e(PMCMainActivity.TAG, "Downloaded close failed");
-                }
-            }
-            return totalBytesRead;
+    /**
+     * One stream of a download cycle, run on the worker pool with its own engine.
+     */
+    private class StreamDownload implements Callable<NioDownloadEngine.Result> {
+        private final int mStream;
+        private final URL mUrl;
+        private final long mUploadBytes;
+
+        StreamDownload(int stream, URL url) {
+            mStream = stream;
+            mUrl = url;
+            mUploadBytes = getUploadSize(url.toString());
+        }
+
+        @Override
+        public NioDownloadEngine.Result call() throws Exception {
+            NioDownloadEngine.Result result = mUploadBytes >= 0
+                    ? mEngines[mStream].upload(mUrl, mUploadBytes, DOWNLOAD_TIMEOUT_MILLIS)
+                    : mEngines[mStream].download(mUrl, DOWNLOAD_TIMEOUT_MILLIS);
+            mStreamBytes.addAndGet(mStream, result.bodyBytes + result.sentBytes);
+            mStreamNanos.addAndGet(mStream, result.ttfbNanos + result.transferNanos);
+            return result;
         }
     }
 }
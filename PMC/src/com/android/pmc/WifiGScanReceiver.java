@@ -15,27 +15,60 @@ import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Call wifi Gscan whenever an alarm is received.
  */
 public class WifiGScanReceiver extends BroadcastReceiver {
+    private static final long SCAN_TIMEOUT_MILLIS = 10 * 1000;
     int mScanCount = 0;
+    long mLastScanLatencyNanos = -1;
+    ScanResultStore mScanResultStore;
     GScanTask mGScanTask;
     PMCMainActivity mPMCMainActivity;
     private WifiManager mWifiManager;
     private Context mContext;
     private PowerManager.WakeLock mWakeLock;
     private WifiScanner mScan;
-    private ScanSettings mScanSettings;
+    private ChannelPlan[] mChannelPlans;
+    private ScanSettings[] mScanSettings;
+    private LatencyHistogram[] mScanLatency;
+    private int mScansPerPlan;
+    private int mPlanIndex;
+    private int mScansInPlan;
     private int mAlarmInterval;
     private AlarmManager mAlarmManager;
     private PendingIntent mAlarmIntent;
 
 
-    public WifiGScanReceiver(PMCMainActivity activity, ScanSettings settings, int interval,
-                             AlarmManager alarmManager, PendingIntent alarmIntent) {
+    /**
+     * Constructor
+     *
+     * @param activity - PMC main activity
+     * @param plans - channel plans to scan, rotated through in order
+     * @param scansPerPlan - number of scans done with a plan before moving to the next
+     * @param interval - time between two scans in milliseconds
+     * @param alarmManager - alarm manager to schedule the scans
+     * @param alarmIntent - intent broadcast to this receiver by the alarm
+     */
+    public WifiGScanReceiver(PMCMainActivity activity, ChannelPlan[] plans, int scansPerPlan,
+                             int interval, AlarmManager alarmManager,
+                             PendingIntent alarmIntent) {
         mPMCMainActivity = activity;
-        mScanSettings = settings;
+        mChannelPlans = plans;
+        mScanSettings = new ScanSettings[plans.length];
+        mScanLatency = new LatencyHistogram[plans.length];
+        for (int i = 0; i < plans.length; i++) {
+            mScanSettings[i] = plans[i].toScanSettings();
+            mScanLatency[i] = activity.getScanLatencyHistogram(
+                    getScanLatencyKey(mScanSettings[i]));
+        }
+        mScansPerPlan = Math.max(1, scansPerPlan);
+        mPlanIndex = 0;
+        mScansInPlan = 0;
+        mScanResultStore = activity.getScanResultStore();
         mScanCount = 0;
         mAlarmInterval = interval;
         mAlarmManager = alarmManager;
@@ -58,9 +91,15 @@ public class WifiGScanReceiver extends BroadcastReceiver {
             // Acquire the lock
             mWakeLock.acquire();
             mScan = (WifiScanner) context.getSystemService(Context.WIFI_SCANNING_SERVICE);
-            Log.i(PMCMainActivity.TAG, "Starting GScan Task");
-            mGScanTask = new GScanTask();
-            mGScanTask.execute(mScanSettings);
+            if (mScansInPlan == mScansPerPlan) {
+                mPlanIndex = (mPlanIndex + 1) % mChannelPlans.length;
+                mScansInPlan = 0;
+            }
+            mScansInPlan++;
+            Log.i(PMCMainActivity.TAG, "Starting GScan Task for channel plan "
+                    + mChannelPlans[mPlanIndex]);
+            mGScanTask = new GScanTask(mScanLatency[mPlanIndex]);
+            mGScanTask.execute(mScanSettings[mPlanIndex]);
         }
         scheduleGscan();
     }
@@ -82,34 +121,63 @@ public class WifiGScanReceiver extends BroadcastReceiver {
         if (mGScanTask != null) mGScanTask.cancel(true);
     }
 
+    /**
+     * Returns the key of the latency histogram for the band or channel set of a scan.
+     * @param settings
+     */
+    static String getScanLatencyKey(ScanSettings settings) {
+        if (settings.band == WifiScanner.WIFI_BAND_UNSPECIFIED && settings.channels != null) {
+            StringBuilder sb = new StringBuilder("GScan/Channels");
+            for (int i = 0; i < settings.channels.length; i++) {
+                sb.append(i == 0 ? ':' : ',').append(settings.channels[i].frequency);
+            }
+            return sb.toString();
+        }
+        switch (settings.band) {
+            case WifiScanner.WIFI_BAND_24_GHZ:
+                return "GScan/2.4GHz";
+            case WifiScanner.WIFI_BAND_5_GHZ:
+                return "GScan/5GHz";
+            case WifiScanner.WIFI_BAND_5_GHZ_DFS_ONLY:
+                return "GScan/5GHzDfsOnly";
+            case WifiScanner.WIFI_BAND_5_GHZ_WITH_DFS:
+                return "GScan/5GHzWithDfs";
+            case WifiScanner.WIFI_BAND_BOTH:
+                return "GScan/Both";
+            case WifiScanner.WIFI_BAND_BOTH_WITH_DFS:
+                return "GScan/BothWithDfs";
+            default:
+                return "GScan/Band:" + settings.band;
+        }
+    }
+
     class GScanTask extends AsyncTask<ScanSettings, Integer, String> {
         WifiScanListener mWifiScanListener;
-        Boolean mScanCompleted = false;
+        final CountDownLatch mScanCompleted = new CountDownLatch(1);
+        final LatencyHistogram mScanLatency;
+        volatile long mScanResultTimeNanos;
 
-        GScanTask() {
+        GScanTask(LatencyHistogram scanLatency) {
             mWifiScanListener = new WifiScanListener();
+            mScanLatency = scanLatency;
         }
 
         @Override
         protected String doInBackground(ScanSettings... settings) {
             //android.os.Debug.waitForDebugger();
             Log.d(PMCMainActivity.TAG, "Starting background task for gscan with channel");
-            int waitCount = 0;
             try {
-                mScanCompleted = false;
+                long scanRequestTimeNanos = SystemClock.elapsedRealtimeNanos();
                 mScan.startBackgroundScan(settings[0], mWifiScanListener);
-                while (!mScanCompleted) {
-                    if (waitCount >= 100) {
-                        return "Timeout, scan results avaiable action didn't triggered";
-                    } else {
-                        Thread.sleep(100);
-                        waitCount += 1;
-                    }
+                if (!mScanCompleted.await(SCAN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return "Timeout, scan results avaiable action didn't triggered";
                 }
+                mLastScanLatencyNanos = mScanResultTimeNanos - scanRequestTimeNanos;
+                mScanLatency.record(mLastScanLatencyNanos / 1000);
                 mScanCount += 1;
-                waitCount = 0;
-                Log.d(PMCMainActivity.TAG, "Number of scan completed " + mScanCount);
-                publishProgress(mScanCount);
+                Log.d(PMCMainActivity.TAG, "Number of scan completed " + mScanCount
+                        + ", latency " + mLastScanLatencyNanos / 1000 + " us");
+                publishProgress(mScanCount, (int) (mLastScanLatencyNanos / 1000000));
             } catch (Exception e) {
                 Log.e(PMCMainActivity.TAG, e.toString());
                 return e.toString();
@@ -128,7 +196,8 @@ public class WifiGScanReceiver extends BroadcastReceiver {
         protected void onProgressUpdate(Integer... values) {
             Log.d(PMCMainActivity.TAG, "GScanTask onProgressUpdate updating the UI");
             mPMCMainActivity.updateProgressStatus("Total Gscan completed :: "
-                    + Integer.toString(values[0].intValue()));
+                    + Integer.toString(values[0].intValue()) + ", Scan latency :: "
+                    + Integer.toString(values[1].intValue()) + " ms");
         }
 
         @Override
@@ -141,6 +210,9 @@ public class WifiGScanReceiver extends BroadcastReceiver {
         }
 
         private class WifiScanListener implements WifiScanner.ScanListener {
+            // Full results already stored, so skip the same results in onResults
+            private boolean mFullResultsSeen = false;
+
             WifiScanListener() {
 
             }
@@ -163,12 +235,28 @@ public class WifiGScanReceiver extends BroadcastReceiver {
             @Override
             public void onFullResult(ScanResult fullScanResult) {
                 Log.d(PMCMainActivity.TAG, "onFullResult called");
+                mFullResultsSeen = true;
+                storeResult(fullScanResult);
             }
 
             @Override
             public void onResults(ScanData[] results) {
                 Log.d(PMCMainActivity.TAG, "onResult WifiScanListener called");
-                mScanCompleted = true;
+                mScanResultTimeNanos = SystemClock.elapsedRealtimeNanos();
+                mScanCompleted.countDown();
+                if (mFullResultsSeen || results == null) return;
+                for (ScanData data : results) {
+                    ScanResult[] scanResults = data.getResults();
+                    if (scanResults == null) continue;
+                    for (ScanResult result : scanResults) {
+                        storeResult(result);
+                    }
+                }
+            }
+
+            private void storeResult(ScanResult result) {
+                mScanResultStore.add(result.BSSID, result.level, result.frequency,
+                        result.timestamp);
             }
         }
     }